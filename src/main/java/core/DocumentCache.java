@@ -0,0 +1,253 @@
+package core;
+
+import structures.Document;
+import utilities.DBConnector;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**DocumentCache is a bounded, least-recently-used cache of
+ * Documents, keyed by their database connector and img_id (so one
+ * cache may serve several databases), that DocumentLoader consults
+ * before querying the database. The cache is bounded by total weight,
+ * where each Document's weight is given by a weigher (1 by default,
+ * bounding the number of Documents), and tracks its hits, misses,
+ * and evictions.
+ *
+ * NOTE: Cached Documents are shared between callers, so callers
+ *       must not modify the Documents they receive; a modified
+ *       Document is returned, as modified, by every later hit
+ *
+ * @author ccervantes
+ */
+public class DocumentCache
+{
+    private LinkedHashMap<Key, Document> _docDict;
+    private Map<Key, Integer> _weightDict;
+    private ToIntFunction<Document> _weigher;
+    private long _maxWeight;
+    private long _weight;
+    private long _hits, _misses, _evictions;
+
+    /**Creates a new DocumentCache holding at most maxDocs Documents
+     *
+     * @param maxDocs
+     */
+    public DocumentCache(int maxDocs)
+    {
+        this(maxDocs, d -> 1);
+    }
+
+    /**Creates a new DocumentCache holding Documents whose total
+     * weight (as given by the weigher; ie. a Document's token count)
+     * is at most maxWeight
+     *
+     * @param maxWeight
+     * @param weigher
+     */
+    public DocumentCache(long maxWeight, ToIntFunction<Document> weigher)
+    {
+        _maxWeight = maxWeight;
+        _weigher = weigher;
+        _docDict = new LinkedHashMap<>(16, 0.75f, true);
+        _weightDict = new HashMap<>();
+        _weight = 0;
+        _hits = _misses = _evictions = 0;
+    }
+
+    /**Returns the cached Document with the given ID, from the
+     * database specified by the conn (marking it as recently used);
+     * null if it isn't cached
+     *
+     * @param conn
+     * @param docID
+     * @return
+     */
+    public synchronized Document get(DBConnector conn, String docID)
+    {
+        Document d = _docDict.get(new Key(conn, docID));
+        if(d == null)
+            _misses++;
+        else
+            _hits++;
+        return d;
+    }
+
+    /**Returns the cached Documents among the given IDs, from the
+     * database specified by the conn, adding the IDs that aren't
+     * cached to missedIDs
+     *
+     * @param conn
+     * @param docIDs
+     * @param missedIDs
+     * @return
+     */
+    public synchronized List<Document> getAll(DBConnector conn, Collection<String> docIDs,
+                                              Collection<String> missedIDs)
+    {
+        List<Document> docList = new ArrayList<>();
+        for(String docID : docIDs){
+            Document d = get(conn, docID);
+            if(d == null)
+                missedIDs.add(docID);
+            else
+                docList.add(d);
+        }
+        return docList;
+    }
+
+    /**Adds the given Document, from the database specified by the
+     * conn, to the cache, evicting the least recently used Documents
+     * until the cache is within its bound; Documents heavier than
+     * the bound aren't cached
+     *
+     * @param conn
+     * @param d
+     */
+    public synchronized void put(DBConnector conn, Document d)
+    {
+        int weight = _weigher.applyAsInt(d);
+        if(weight > _maxWeight)
+            return;
+        Key key = new Key(conn, d.getID());
+        remove(key);
+        _docDict.put(key, d);
+        _weightDict.put(key, weight);
+        _weight += weight;
+
+        Iterator<Key> keyItr = _docDict.keySet().iterator();
+        while(_weight > _maxWeight && keyItr.hasNext()){
+            Key evicted = keyItr.next();
+            keyItr.remove();
+            _weight -= _weightDict.remove(evicted);
+            _evictions++;
+        }
+    }
+
+    /**Adds each of the given Documents, from the database
+     * specified by the conn, to the cache
+     *
+     * @param conn
+     * @param docs
+     */
+    public synchronized void putAll(DBConnector conn, Collection<Document> docs)
+    {
+        for(Document d : docs)
+            put(conn, d);
+    }
+
+    /**Removes the Document with the given ID, from the database
+     * specified by the conn, from the cache, if present
+     *
+     * @param conn
+     * @param docID
+     */
+    public synchronized void remove(DBConnector conn, String docID)
+    {
+        remove(new Key(conn, docID));
+    }
+
+    /**Removes the Document with the given key, if present
+     *
+     * @param key
+     */
+    private void remove(Key key)
+    {
+        if(_docDict.remove(key) != null)
+            _weight -= _weightDict.remove(key);
+    }
+
+    /**Removes all Documents from the cache (but
+     * retains its counters)
+     */
+    public synchronized void clear()
+    {
+        _docDict.clear();
+        _weightDict.clear();
+        _weight = 0;
+    }
+
+    /**Returns the number of cached Documents
+     *
+     * @return
+     */
+    public synchronized int size(){return _docDict.size();}
+
+    /**Returns the total weight of the cached Documents
+     *
+     * @return
+     */
+    public synchronized long getWeight(){return _weight;}
+
+    /**Returns the number of lookups that found their Document
+     *
+     * @return
+     */
+    public synchronized long getHitCount(){return _hits;}
+
+    /**Returns the number of lookups that didn't find their Document
+     *
+     * @return
+     */
+    public synchronized long getMissCount(){return _misses;}
+
+    /**Returns the number of Documents evicted to stay within the bound
+     *
+     * @return
+     */
+    public synchronized long getEvictionCount(){return _evictions;}
+
+    /**Returns the fraction of lookups that found their
+     * Document; 0 if there have been no lookups
+     *
+     * @return
+     */
+    public synchronized double getHitRate()
+    {
+        long lookups = _hits + _misses;
+        return lookups == 0 ? 0.0 : (double)_hits / lookups;
+    }
+
+    /**Returns a summary of the cache's size and counters
+     *
+     * @return
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%d docs (weight %d/%d); %d hits, %d misses " +
+                             "(%.2f%% hit rate), %d evictions", _docDict.size(),
+                             _weight, _maxWeight, _hits, _misses,
+                             100.0 * getHitRate(), _evictions);
+    }
+
+    /**A Key identifies a cached Document by its connector
+     * (compared by identity) and img_id
+     */
+    private static class Key
+    {
+        private DBConnector _conn;
+        private String _docID;
+
+        Key(DBConnector conn, String docID)
+        {
+            _conn = conn;
+            _docID = docID;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(!(o instanceof Key))
+                return false;
+            Key other = (Key)o;
+            return _conn == other._conn && _docID.equals(other._docID);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * System.identityHashCode(_conn) + _docID.hashCode();
+        }
+    }
+}
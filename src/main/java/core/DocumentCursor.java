@@ -0,0 +1,20 @@
+package core;
+
+import structures.Document;
+
+import java.util.Iterator;
+
+/**A DocumentCursor iterates over Documents read through database
+ * cursors, which it holds until it's closed (or exhausted); since
+ * closing never throws, cursors can close from a Stream's close
+ * handler
+ *
+ * @author ccervantes
+ */
+interface DocumentCursor extends Iterator<Document>, AutoCloseable
+{
+    /**Closes this cursor's database cursors
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,552 @@
+package core;
+
+import structures.*;
+import utilities.DBConnector;
+import utilities.Logger;
+import utilities.Util;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**DocumentIterator streams Documents out of a database one at a
+ * time; each of the seven document tables is read through its
+ * own forward-only cursor, ordered by img_id, and the cursors
+ * are merge-joined on that key, such that a Document is returned
+ * as soon as all of its rows have been read. At any point, only the
+ * Document being built (plus the cursors' fetch buffers) is held
+ * in memory.
+ *
+ * Given a LoadProfile, only the tables the profile includes are
+ * read; boxes and dependency trees left out are fetched per Document
+ * (or, for dependencies, per Caption) on first access.
+ *
+ * NOTE: Iterators hold (up to) seven pooled connections; close()
+ *       them (or exhaust them) when finished
+ *
+ * @author ccervantes
+ */
+public class DocumentIterator implements DocumentCursor
+{
+    //The number of cursors (and thus pooled connections) each iterator holds
+    static final int NUM_CURSORS = 7;
+
+    private static final String BOX_QUERY = "SELECT img_id, box_id, x_min, y_min, " +
+            "x_max, y_max, category, super_category FROM box ";
+    private static final String DEPENDENCY_QUERY = "SELECT img_id, caption_idx, " +
+            "gov_token_idx, dep_token_idx, relation FROM dependency ";
+    private static final String CHAIN_QUERY = "SELECT img_id, chain_id, assoc_box_ids, " +
+            "is_scene, is_orig_nobox FROM chain ";
+
+    private DBConnector _conn;
+    private LoadProfile _profile;
+    private TableCursor _image, _token, _chunk, _box, _chain,
+                        _mention, _dependency;
+    private Document _nextDoc;
+    private boolean _closed;
+
+    /**Creates a new DocumentIterator over all Documents in the
+     * database specified by conn
+     *
+     * @param conn
+     * @throws Exception
+     */
+    public DocumentIterator(DBConnector conn) throws Exception
+    {
+        this(conn, "");
+    }
+
+    /**Creates a new DocumentIterator over the Documents
+     * whose rows match the given img_id filter, which is
+     * appended to each table's query (ie. "WHERE img_id IN (?,?)"),
+     * with the given params bound to its placeholders
+     *
+     * @param conn          Database connector
+     * @param imgFilter     Query fragment restricting img_id
+     * @param params        Values to bind to the filter's placeholders
+     * @throws Exception
+     */
+    public DocumentIterator(DBConnector conn, String imgFilter,
+                            Object... params) throws Exception
+    {
+        this(conn, LoadProfile.DEPENDENCIES, imgFilter, params);
+    }
+
+    /**Creates a new DocumentIterator over the Documents
+     * whose rows match the given img_id filter, which is
+     * appended to each table's query (ie. "WHERE img_id IN (?,?)"),
+     * with the given params bound to its placeholders; only
+     * the tables included in the given profile are read
+     *
+     * @param conn          Database connector
+     * @param profile       The parts of each Document to load up front
+     * @param imgFilter     Query fragment restricting img_id
+     * @param params        Values to bind to the filter's placeholders
+     * @throws Exception
+     */
+    public DocumentIterator(DBConnector conn, LoadProfile profile,
+                            String imgFilter, Object... params) throws Exception
+    {
+        _conn = conn;
+        _profile = profile;
+        _nextDoc = null;
+        _closed = false;
+
+        //The merge join compares img_ids with String.compareTo(), which
+        //matches the binary collation populateDocumentDB() declares them
+        //with, so cursors stream in primary key order (without a sort)
+        try{
+            _image = new TableCursor("image", "SELECT img_id, height, width, " +
+                    "cross_val, reviewed, img_url, anno_comments FROM image " +
+                    imgFilter + " ORDER BY img_id", params);
+            _token = new TableCursor("token", "SELECT img_id, caption_idx, token_idx, " +
+                    "token, lemma, pos_tag FROM token " + imgFilter +
+                    " ORDER BY img_id, caption_idx, token_idx", params);
+            _chunk = new TableCursor("chunk", "SELECT img_id, caption_idx, chunk_idx, " +
+                    "start_token_idx, end_token_idx, chunk_type FROM chunk " +
+                    imgFilter + " ORDER BY img_id, caption_idx, chunk_idx", params);
+            if(profile.includes(LoadProfile.BOXES))
+                _box = new TableCursor("box", BOX_QUERY + imgFilter +
+                        " ORDER BY img_id, box_id", params);
+            if(profile.includes(LoadProfile.MENTIONS)){
+                _chain = new TableCursor("chain", CHAIN_QUERY + imgFilter +
+                        " ORDER BY img_id, chain_id", params);
+                _mention = new TableCursor("mention", "SELECT img_id, caption_idx, mention_idx, " +
+                        "start_token_idx, end_token_idx, card_str, chain_id, " +
+                        "lexical_type FROM mention " + imgFilter +
+                        " ORDER BY img_id, caption_idx, mention_idx", params);
+            }
+            if(profile.includes(LoadProfile.DEPENDENCIES))
+                _dependency = new TableCursor("dependency", DEPENDENCY_QUERY +
+                        imgFilter + " ORDER BY img_id, caption_idx", params);
+        } catch(Exception ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**Returns whether there is another Document to read; closes
+     * the underlying cursors once the <image> table is exhausted
+     *
+     * @return
+     */
+    @Override
+    public boolean hasNext()
+    {
+        if(_nextDoc == null && !_closed){
+            try{
+                _nextDoc = readDocument();
+            } catch(SQLException sqlEx) {
+                Logger.log(sqlEx);
+                close();
+                throw new RuntimeException("Error reading documents from database", sqlEx);
+            }
+            if(_nextDoc == null)
+                close();
+        }
+        return _nextDoc != null;
+    }
+
+    /**Returns the next Document
+     *
+     * @return
+     */
+    @Override
+    public Document next()
+    {
+        if(!hasNext())
+            throw new NoSuchElementException();
+        Document d = _nextDoc;
+        _nextDoc = null;
+        return d;
+    }
+
+    /**Closes all of this iterator's cursors (and, by extension,
+     * their connections)
+     */
+    @Override
+    public void close()
+    {
+        if(_closed)
+            return;
+        _closed = true;
+        for(TableCursor tc : new TableCursor[]{_image, _token, _chunk,
+                _box, _chain, _mention, _dependency})
+            if(tc != null)
+                _conn.closeCursor(tc.rs);
+    }
+
+    /**Reads the next Document from the cursors, following the
+     * same table order as DocumentLoader.getDocumentSet(); returns
+     * null when there are no more images
+     *
+     * @return
+     * @throws SQLException
+     */
+    private Document readDocument() throws SQLException
+    {
+        if(!_image.hasRow)
+            return null;
+
+        ResultSet rs = _image.rs;
+        String imgID = _image.imgID;
+        Document d = new Document(imgID);
+        d.height = rs.getInt("height");
+        d.width = rs.getInt("width");
+        d.crossVal = Util.castInteger(rs.getObject("cross_val"));
+        d.reviewed = rs.getBoolean("reviewed");
+        d.imgURL = rs.getString("img_url");
+        d.comments = rs.getString("anno_comments");
+        _image.advance();
+
+        //Tokens and captions
+        rs = _token.rs;
+        for(boolean hasRow = _token.seek(imgID); hasRow; hasRow = _token.advanceWithin(imgID)){
+            int captionIdx = rs.getInt("caption_idx");
+            Token t = new Token(imgID, captionIdx, rs.getInt("token_idx"),
+                    rs.getString("token"), rs.getString("lemma"),
+                    rs.getString("pos_tag"));
+            Caption c = d.getCaption(captionIdx);
+            if(c == null){
+                c = new Caption(imgID, captionIdx);
+                d.addCaption(c);
+            }
+            c.addToken(t);
+        }
+
+        //Chunks
+        rs = _chunk.rs;
+        for(boolean hasRow = _chunk.seek(imgID); hasRow; hasRow = _chunk.advanceWithin(imgID)){
+            d.getCaption(rs.getInt("caption_idx")).addChunk(rs.getInt("chunk_idx"),
+                    rs.getString("chunk_type"), rs.getInt("start_token_idx"),
+                    rs.getInt("end_token_idx"));
+        }
+
+        //Bounding boxes, which are held until we know
+        //their chain associations
+        Map<Integer, BoundingBox> boxDict = new HashMap<>();
+        if(_box != null){
+            rs = _box.rs;
+            for(boolean hasRow = _box.seek(imgID); hasRow; hasRow = _box.advanceWithin(imgID))
+                readBox(rs, imgID, boxDict);
+        }
+
+        //Chains, and their associations with boxes; when chains
+        //are skipped, lazily loaded boxes fetch both (since boxes
+        //are only reachable through their chains)
+        Map<Integer, Set<String>> boxChainDict = new HashMap<>();
+        if(_chain != null){
+            rs = _chain.rs;
+            for(boolean hasRow = _chain.seek(imgID); hasRow; hasRow = _chain.advanceWithin(imgID))
+                d.addChain(readChain(rs, imgID, boxChainDict));
+        }
+        if(_box != null){
+            addBoxes(d, boxDict, boxChainDict);
+        } else {
+            Map<Integer, Set<String>> knownBoxChainDict = _chain == null ? null : boxChainDict;
+            d.setBoxLoader(() -> loadBoxes(_conn, d, knownBoxChainDict));
+        }
+        d.addChain(new Chain(imgID, "0"));
+
+        //Mentions
+        rs = _mention == null ? null : _mention.rs;
+        for(boolean hasRow = _mention != null && _mention.seek(imgID); hasRow;
+            hasRow = _mention.advanceWithin(imgID)){
+            String cardStr = rs.getString("card_str");
+            Cardinality card = null;
+            try{
+                if(cardStr != null)
+                    card = new Cardinality(cardStr);
+            } catch(Exception ex) {
+                Logger.log(ex);
+            }
+            Mention m = d.getCaption(rs.getInt("caption_idx")).addMention(
+                    rs.getInt("mention_idx"), rs.getString("lexical_type"),
+                    rs.getString("chain_id"), card, rs.getInt("start_token_idx"),
+                    rs.getInt("end_token_idx"));
+            d.addMentionToChain(m);
+        }
+
+        //Dependency trees
+        if(_dependency != null){
+            rs = _dependency.rs;
+            Map<Integer, Set<String>> depDict = new HashMap<>();
+            for(boolean hasRow = _dependency.seek(imgID); hasRow; hasRow = _dependency.advanceWithin(imgID))
+                readDependency(rs, depDict);
+            setDependencies(d, depDict);
+        } else {
+            //One loader, shared by all captions, fetches
+            //every caption's tree (at most once)
+            Runnable depLoader = new OnceLoader(d, () -> loadDependencies(_conn, d));
+            for(Caption c : d.getCaptionList())
+                c.setDependencyLoader(depLoader);
+        }
+
+        return d;
+    }
+
+    /**Returns the chain in the current row, adding its
+     * box associations to boxChainDict
+     *
+     * @param rs
+     * @param imgID
+     * @param boxChainDict
+     * @return
+     * @throws SQLException
+     */
+    private static Chain readChain(ResultSet rs, String imgID,
+                                   Map<Integer, Set<String>> boxChainDict) throws SQLException
+    {
+        String chainID = rs.getString("chain_id");
+        Chain c = new Chain(imgID, chainID);
+        c.isScene = rs.getBoolean("is_scene");
+        c.isOrigNobox = rs.getBoolean("is_orig_nobox");
+        String assocBoxIDs = rs.getString("assoc_box_ids");
+        if(assocBoxIDs != null && !assocBoxIDs.trim().isEmpty()){
+            for(String assocBox : assocBoxIDs.split("\\|")){
+                Integer boxID = Integer.parseInt(assocBox);
+                if(!boxChainDict.containsKey(boxID))
+                    boxChainDict.put(boxID, new HashSet<>());
+                boxChainDict.get(boxID).add(chainID);
+            }
+        }
+        return c;
+    }
+
+    /**Reads the box in the current row into boxDict
+     *
+     * @param rs
+     * @param imgID
+     * @param boxDict
+     * @throws SQLException
+     */
+    private static void readBox(ResultSet rs, String imgID,
+                                Map<Integer, BoundingBox> boxDict) throws SQLException
+    {
+        int boxID = rs.getInt("box_id");
+        boxDict.put(boxID, new BoundingBox(imgID, boxID, rs.getInt("x_min"),
+                rs.getInt("y_min"), rs.getInt("x_max"), rs.getInt("y_max"),
+                rs.getString("category"), rs.getString("super_category")));
+    }
+
+    /**Adds the given boxes to the Document, associating
+     * them with chains according to boxChainDict
+     *
+     * @param d
+     * @param boxDict
+     * @param boxChainDict
+     */
+    private static void addBoxes(Document d, Map<Integer, BoundingBox> boxDict,
+                                 Map<Integer, Set<String>> boxChainDict)
+    {
+        for(Integer boxID : boxDict.keySet()){
+            Set<String> assocChains = new HashSet<>();
+            if(boxChainDict.containsKey(boxID))
+                assocChains.addAll(boxChainDict.get(boxID));
+            d.addBoundingBox(boxDict.get(boxID), assocChains);
+        }
+    }
+
+    /**Reads the dependency in the current row into depDict,
+     * as a gov_token_idx|relation|dep_token_idx string
+     *
+     * @param rs
+     * @param depDict
+     * @throws SQLException
+     */
+    private static void readDependency(ResultSet rs,
+                                       Map<Integer, Set<String>> depDict) throws SQLException
+    {
+        int captionIdx = rs.getInt("caption_idx");
+        if(!depDict.containsKey(captionIdx))
+            depDict.put(captionIdx, new HashSet<>());
+        depDict.get(captionIdx).add(rs.getInt("gov_token_idx") + "|" +
+                rs.getString("relation") + "|" + rs.getInt("dep_token_idx"));
+    }
+
+    /**Sets the dependency trees of the Document's captions
+     * from depDict; captions without dependencies are left
+     * without trees
+     *
+     * @param d
+     * @param depDict
+     */
+    private static void setDependencies(Document d, Map<Integer, Set<String>> depDict)
+    {
+        for(Caption c : d.getCaptionList()){
+            if(depDict.containsKey(c.getIdx()))
+                c.setRootNode(depDict.get(c.getIdx()));
+            else
+                c.setDependencyLoader(null);
+        }
+    }
+
+    /**Fetches and adds the given Document's bounding boxes;
+     * used for Documents loaded without them. If boxChainDict
+     * is null (the Document was loaded without chains), the
+     * Document's chains and their box associations are fetched
+     * as well, and chains not already present are added. All
+     * rows are read before the Document is modified, so a
+     * failed load leaves it unchanged (and may be retried).
+     *
+     * @param conn
+     * @param d
+     * @param boxChainDict
+     * @throws RuntimeException If the boxes can't be read
+     */
+    static void loadBoxes(DBConnector conn, Document d,
+                          Map<Integer, Set<String>> boxChainDict)
+    {
+        Map<Integer, BoundingBox> boxDict = new HashMap<>();
+        List<Chain> chainList = new ArrayList<>();
+        ResultSet rs = null;
+        try{
+            if(boxChainDict == null){
+                boxChainDict = new HashMap<>();
+                rs = conn.openCursor(CHAIN_QUERY + "WHERE img_id=? ORDER BY chain_id", d.getID());
+                while(rs.next())
+                    chainList.add(readChain(rs, d.getID(), boxChainDict));
+                conn.closeCursor(rs);
+                rs = null;
+            }
+            rs = conn.openCursor(BOX_QUERY + "WHERE img_id=? ORDER BY box_id", d.getID());
+            while(rs.next())
+                readBox(rs, d.getID(), boxDict);
+        } catch(Exception ex) {
+            throw new RuntimeException("Could not load boxes for " + d.getID(), ex);
+        } finally {
+            conn.closeCursor(rs);
+        }
+
+        for(Chain c : chainList)
+            if(d.getChain(c.getID()) == null)
+                d.addChain(c);
+        addBoxes(d, boxDict, boxChainDict);
+    }
+
+    /**Fetches and sets the dependency trees of the given
+     * Document's captions; used for Documents loaded without them.
+     * All rows are read before any tree is set, so a failed load
+     * leaves the captions unchanged (and may be retried).
+     *
+     * @param conn
+     * @param d
+     * @throws RuntimeException If the dependencies can't be read
+     */
+    static void loadDependencies(DBConnector conn, Document d)
+    {
+        Map<Integer, Set<String>> depDict = new HashMap<>();
+        ResultSet rs = null;
+        try{
+            rs = conn.openCursor(DEPENDENCY_QUERY + "WHERE img_id=? " +
+                                 "ORDER BY caption_idx", d.getID());
+            while(rs.next())
+                readDependency(rs, depDict);
+        } catch(Exception ex) {
+            throw new RuntimeException("Could not load dependencies for " + d.getID(), ex);
+        } finally {
+            conn.closeCursor(rs);
+        }
+        setDependencies(d, depDict);
+    }
+
+    /**An OnceLoader runs a loader shared by several objects (ie. a
+     * Document's captions) at most once, under a single lock; callers
+     * that arrive while it runs wait for it to finish. A loader that
+     * throws hasn't run, and is retried by the next caller.
+     */
+    private static class OnceLoader implements Runnable
+    {
+        private final Object _lock;
+        private final Runnable _loader;
+        private boolean _done;
+
+        OnceLoader(Object lock, Runnable loader)
+        {
+            _lock = lock;
+            _loader = loader;
+            _done = false;
+        }
+
+        @Override
+        public void run()
+        {
+            synchronized (_lock){
+                if(!_done){
+                    _loader.run();
+                    _done = true;
+                }
+            }
+        }
+    }
+
+    /**A TableCursor wraps one table's ResultSet, keeping track of
+     * the img_id of the row it currently sits on
+     */
+    private class TableCursor
+    {
+        String table;
+        ResultSet rs;
+        boolean hasRow;
+        String imgID;
+
+        TableCursor(String table, String query, Object[] params) throws Exception
+        {
+            this.table = table;
+            rs = _conn.openCursor(query, params);
+            advance();
+        }
+
+        /**Moves this cursor to the next row
+         *
+         * @throws SQLException
+         */
+        void advance() throws SQLException
+        {
+            String prevImgID = imgID;
+            hasRow = rs.next();
+            imgID = hasRow ? rs.getString("img_id") : null;
+
+            //rows out of order would be silently skipped by seek()
+            if(hasRow && prevImgID != null && imgID.compareTo(prevImgID) < 0)
+                throw new SQLException("<" + table + "> rows are not ordered by img_id " +
+                        "(found " + imgID + " after " + prevImgID + ")");
+        }
+
+        /**Moves this cursor forward to the first row for the given
+         * img_id, skipping (and logging) rows for images that don't
+         * appear in <image>; returns whether the cursor sits on a
+         * row for imgID
+         *
+         * NOTE: Relies on the database ordering img_ids the same
+         *       way String.compareTo() does, which img_id's binary
+         *       collation ensures (and advance() verifies)
+         *
+         * @param imgID
+         * @return
+         * @throws SQLException
+         */
+        boolean seek(String imgID) throws SQLException
+        {
+            while(hasRow && this.imgID.compareTo(imgID) < 0){
+                Logger.log("Skipping <%s> row for unknown image %s",
+                           table, this.imgID);
+                advance();
+            }
+            return hasRow && this.imgID.equals(imgID);
+        }
+
+        /**Moves this cursor to the next row, returning whether
+         * that row still belongs to the given img_id
+         *
+         * @param imgID
+         * @return
+         * @throws SQLException
+         */
+        boolean advanceWithin(String imgID) throws SQLException
+        {
+            advance();
+            return hasRow && this.imgID.equals(imgID);
+        }
+    }
+}
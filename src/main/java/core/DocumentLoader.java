@@ -5,7 +5,23 @@ import structures.*;
 import utilities.*;
 
 import javax.sql.rowset.CachedRowSet;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 /**DocumentLoader houses static functions to load Document
  * objects from various places, including .coref files,
@@ -15,6 +31,21 @@ import java.util.*;
  */
 public class DocumentLoader
 {
+    private static final int DEFAULT_ID_BATCH_SIZE = 500;
+    private static final int MAX_ID_BATCH_SIZE = 999;
+
+    //Bounds the rows waiting on each table's writer
+    //while populating a database
+    private static final int ROW_QUEUE_SIZE = 10000;
+    private static final Object[] END_OF_ROWS = new Object[0];
+
+    /* Secondary indices (table, index name, columns) created
+     * after population; each table's primary key already covers
+     * its (img_id, caption_idx, ...) reads */
+    private static final String[][] SECONDARY_INDICES = {
+            {"image", "idx_image_split", "cross_val, reviewed"},
+            {"mention", "idx_mention_chain", "img_id, chain_id"},
+    };
 
     public static void main(String[] args) {}
 
@@ -27,31 +58,61 @@ public class DocumentLoader
      * @return
      */
     public static Collection<Document> getDocumentSet(String corefFile, String lexiconDir, String wordListDir)
+    {
+        return getDocumentSet(corefFile, lexiconDir, wordListDir,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**Returns a list of Documents, based on a .coref file
+     * and the specified lexicon and word list directories, where
+     * Documents are parsed in parallel with numThreads threads
+     * and returned in img_id order
+     *
+     * @param corefFile
+     * @param lexiconDir
+     * @param wordListDir
+     * @param numThreads
+     * @return
+     */
+    public static Collection<Document> getDocumentSet(String corefFile, String lexiconDir,
+                                                      String wordListDir, int numThreads)
     {
         List<String> corefList = FileIO.readFile_lineList(corefFile);
         Mention.initializeLexicons(lexiconDir, null);
         Cardinality.initCardLists(wordListDir + "/collectiveNouns.txt");
         Caption.initLemmatizer();
 
-        Map<String, List<String>> corefDict = new HashMap<>();
-        for(String corefStr : corefList){
-            String idStr = corefStr.split("\t")[0];
-            String[] idParts = idStr.split("#");
-            if(!corefDict.containsKey(idParts[0]))
-                corefDict.put(idParts[0], new ArrayList<>());
-            int insertionIdx = 0, captionIdx = Integer.parseInt(idParts[1]);
-            for(String corefLine : corefDict.get(idParts[0])){
-                if(captionIdx > Integer.parseInt(corefLine.split("\t")[0].split("#")[1]))
-                    insertionIdx++;
-            }
-            corefDict.get(idParts[0]).add(insertionIdx, corefStr);
-        }
+        return parseCorefDocuments(corefList, numThreads);
+    }
 
-        Set<Document> docSet = new HashSet<>();
-        for(List<String> corefStrSet : corefDict.values())
-            docSet.add(new Document(corefStrSet));
+    /**Returns shard shardIdx (of numShards) of the Documents in a .coref
+     * file, where Documents are assigned to shards by getShardIdx();
+     * coref strings outside the shard are dropped before parsing
+     *
+     * @param corefFile
+     * @param lexiconDir
+     * @param wordListDir
+     * @param shardIdx
+     * @param numShards
+     * @return
+     */
+    public static Collection<Document> getDocumentShard(String corefFile, String lexiconDir,
+                                                        String wordListDir, int shardIdx,
+                                                        int numShards)
+    {
+        checkShard(shardIdx, numShards);
+        List<String> corefList = new ArrayList<>();
+        for(String corefStr : FileIO.readFile_lineList(corefFile)){
+            int hashIdx = corefStr.indexOf('#');
+            if(hashIdx > 0 && getShardIdx(corefStr.substring(0, hashIdx), numShards) == shardIdx)
+                corefList.add(corefStr);
+        }
+        Mention.initializeLexicons(lexiconDir, null);
+        Cardinality.initCardLists(wordListDir + "/collectiveNouns.txt");
+        Caption.initLemmatizer();
 
-        return docSet;
+        Logger.log("Loading shard %d/%d (%d coref strings)", shardIdx, numShards, corefList.size());
+        return parseCorefDocuments(corefList, Runtime.getRuntime().availableProcessors());
     }
 
     /**Returns a set of Documents, based on a coref file,
@@ -76,25 +137,10 @@ public class DocumentLoader
         List<String> corefList = FileIO.readFile_lineList(corefFile);
 
         //Load .coref files and build the documents
-        Map<String, List<String>> corefDict = new HashMap<>();
-        for(String corefStr : corefList){
-            String idStr = corefStr.split("\t")[0];
-            String[] idParts = idStr.split("#");
-            if(!corefDict.containsKey(idParts[0]))
-                corefDict.put(idParts[0], new ArrayList<>());
-            int insertionIdx = 0, captionIdx = Integer.parseInt(idParts[1]);
-            for(String corefLine : corefDict.get(idParts[0])){
-                if(captionIdx > Integer.parseInt(corefLine.split("\t")[0].split("#")[1]))
-                    insertionIdx++;
-            }
-            corefDict.get(idParts[0]).add(insertionIdx, corefStr);
-        }
-
-        Map<String, Document> docDict = new HashMap<>();
-        for(List<String> corefStrSet : corefDict.values()){
-            Document d = new Document(corefStrSet);
+        Map<String, Document> docDict = new LinkedHashMap<>();
+        for(Document d : parseCorefDocuments(corefList,
+                Runtime.getRuntime().availableProcessors()))
             docDict.put(d.getID(), d);
-        }
 
         //Load the img file and augment the documents
         String[][] imgTable = FileIO.readFile_table(imgFile);
@@ -138,6 +184,99 @@ public class DocumentLoader
         return docDict.values();
     }
 
+    /**Groups the given coref strings by their (docID, captionIdx)
+     * IDs - parsing each ID only once - and builds a Document from
+     * each group on a fork-join pool of numThreads threads; Documents
+     * are returned in docID order, regardless of numThreads. If any
+     * Document fails to parse, its exception is rethrown (see
+     * toUnchecked())
+     *
+     * @param corefList
+     * @param numThreads
+     * @return
+     */
+    private static List<Document> parseCorefDocuments(List<String> corefList, int numThreads)
+    {
+        //Each coref string is prefixed by its docID#captionIdx;
+        //sort by these IDs, so each Document's strings are contiguous
+        //and in caption order
+        List<CorefLine> lines = new ArrayList<>(corefList.size());
+        for(String corefStr : corefList){
+            int tabIdx = corefStr.indexOf('\t');
+            int hashIdx = corefStr.indexOf('#');
+            lines.add(new CorefLine(corefStr.substring(0, hashIdx),
+                    Integer.parseInt(corefStr.substring(hashIdx+1, tabIdx)),
+                    corefStr));
+        }
+        lines.sort(Comparator.comparing((CorefLine l) -> l.docID)
+                             .thenComparingInt(l -> l.captionIdx));
+
+        List<List<String>> corefGroups = new ArrayList<>();
+        String prevDocID = null;
+        for(CorefLine l : lines){
+            if(!l.docID.equals(prevDocID))
+                corefGroups.add(new ArrayList<>());
+            corefGroups.get(corefGroups.size()-1).add(l.corefStr);
+            prevDocID = l.docID;
+        }
+
+        //Parse the groups in parallel; collecting a parallel stream
+        //into a list preserves the groups' order
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, numThreads));
+        try{
+            return pool.submit(() -> corefGroups.parallelStream()
+                    .map(Document::new).collect(Collectors.toList())).get();
+        } catch(InterruptedException | ExecutionException ex) {
+            throw toUnchecked(ex, "Failed to parse coref documents");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**Returns the unchecked exception to throw for a failed parallel
+     * load, such that callers see the same exception a sequential load
+     * would have thrown: a task's unchecked exception is returned as-is
+     * (and its errors rethrown), while checked exceptions are wrapped
+     * with the given message. Interruptions restore the thread's
+     * interrupt flag
+     *
+     * @param ex
+     * @param message
+     * @return
+     */
+    private static RuntimeException toUnchecked(Exception ex, String message)
+    {
+        if(ex instanceof InterruptedException){
+            Thread.currentThread().interrupt();
+            return new RuntimeException(message + " (interrupted)", ex);
+        }
+        Throwable cause = ex;
+        if(ex instanceof ExecutionException && ex.getCause() != null)
+            cause = ex.getCause();
+        if(cause instanceof RuntimeException)
+            return (RuntimeException)cause;
+        if(cause instanceof Error)
+            throw (Error)cause;
+        return new RuntimeException(message, cause);
+    }
+
+    /**A CorefLine is a coref string, along with
+     * its parsed docID and caption index
+     */
+    private static class CorefLine
+    {
+        String docID;
+        int captionIdx;
+        String corefStr;
+
+        CorefLine(String docID, int captionIdx, String corefStr)
+        {
+            this.docID = docID;
+            this.captionIdx = captionIdx;
+            this.corefStr = corefStr;
+        }
+    }
+
     /**Returns a set of Documents, based on a Flickr30kEntities directory
      * (which contains Sentences/ and Annotations/ directories, each of which has
      * a file used in Document construction)
@@ -147,18 +286,108 @@ public class DocumentLoader
      * @return
      */
     public static Collection<Document> getDocumentSet(String flickr30kEntitiesDir, String wordListDir)
+    {
+        return getDocumentSet(flickr30kEntitiesDir, wordListDir,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**Returns a set of Documents, based on a Flickr30kEntities directory
+     * (which contains Sentences/ and Annotations/ directories, each of which has
+     * a file used in Document construction), where Documents are parsed
+     * concurrently on a pool of numThreads threads
+     *
+     * @param flickr30kEntitiesDir
+     * @param wordListDir
+     * @param numThreads
+     * @return
+     */
+    public static Collection<Document> getDocumentSet(String flickr30kEntitiesDir, String wordListDir,
+                                                      int numThreads)
     {
         Cardinality.initCardLists(wordListDir + "/collectiveNouns.txt");
+        return loadEntitiesDocuments(flickr30kEntitiesDir, docID -> true, numThreads);
+    }
 
-        //get the filenames from the sentences directory (assuming the annotations are the same)
-        Set<String> filenames =
-                new HashSet<>(FileIO.getFileNamesFromDir(flickr30kEntitiesDir + "Sentences/"));
+    /**Returns shard shardIdx (of numShards) of the Documents in a
+     * Flickr30kEntities directory, where Documents are assigned to
+     * shards by getShardIdx(); only the files in the shard are read
+     *
+     * @param flickr30kEntitiesDir
+     * @param wordListDir
+     * @param shardIdx
+     * @param numShards
+     * @return
+     */
+    public static Collection<Document> getDocumentShard(String flickr30kEntitiesDir, String wordListDir,
+                                                        int shardIdx, int numShards)
+    {
+        checkShard(shardIdx, numShards);
+        Cardinality.initCardLists(wordListDir + "/collectiveNouns.txt");
+        return loadEntitiesDocuments(flickr30kEntitiesDir,
+                docID -> getShardIdx(docID, numShards) == shardIdx,
+                Runtime.getRuntime().availableProcessors());
+    }
 
-        Set<Document> docSet = new HashSet<>();
-        for(String filename : filenames)
-            docSet.add(new Document(flickr30kEntitiesDir + "Sentences/" +filename,
-                                    flickr30kEntitiesDir + "Annotations/" + filename.replace("txt", "xml")));
-        return docSet;
+    /**Walks the Sentences/ and Annotations/ directories of a Flickr30kEntities
+     * directory, pairing each sentence file with its annotation file, and
+     * constructs the Documents whose IDs pass the filter on a bounded pool
+     * of numThreads threads; sentence files without annotation files
+     * are logged and skipped, while unreadable directories and failed
+     * Documents are rethrown (see toUnchecked())
+     *
+     * @param flickr30kEntitiesDir
+     * @param docFilter
+     * @param numThreads
+     * @return
+     */
+    private static Set<Document> loadEntitiesDocuments(String flickr30kEntitiesDir,
+                                                       Predicate<String> docFilter,
+                                                       int numThreads)
+    {
+        Path sentenceDir = Paths.get(flickr30kEntitiesDir, "Sentences");
+        Path annotationDir = Paths.get(flickr30kEntitiesDir, "Annotations");
+
+        //Documents' IDs are their sentence filenames, with .jpg extensions
+        Map<String, Path> annotationDict = new HashMap<>();
+        Map<String, Path> sentenceDict = new TreeMap<>();
+        try(DirectoryStream<Path> annotationFiles = Files.newDirectoryStream(annotationDir, "*.xml");
+            DirectoryStream<Path> sentenceFiles = Files.newDirectoryStream(sentenceDir, "*.txt")){
+            for(Path p : annotationFiles)
+                annotationDict.put(StringUtil.getFilenameFromPath(p.toString()) + ".jpg", p);
+            for(Path p : sentenceFiles){
+                String docID = StringUtil.getFilenameFromPath(p.toString()) + ".jpg";
+                if(docFilter.test(docID))
+                    sentenceDict.put(docID, p);
+            }
+        } catch(IOException ioEx) {
+            throw new UncheckedIOException("Could not list " + flickr30kEntitiesDir, ioEx);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        List<Future<Document>> futures = new ArrayList<>();
+        try{
+            for(Map.Entry<String, Path> e : sentenceDict.entrySet()){
+                Path annotationFile = annotationDict.get(e.getKey());
+                if(annotationFile == null){
+                    Logger.log("WARNING: no annotation file for " + e.getKey());
+                    continue;
+                }
+                String sentenceFilename = e.getValue().toString();
+                futures.add(pool.submit(() ->
+                        new Document(sentenceFilename, annotationFile.toString())));
+            }
+
+            Set<Document> docSet = new HashSet<>();
+            for(Future<Document> f : futures){
+                docSet.add(f.get());
+                Logger.logStatus("Loaded %d of %d documents", docSet.size(), futures.size());
+            }
+            return docSet;
+        } catch(InterruptedException | ExecutionException ex) {
+            throw toUnchecked(ex, "Failed to load Flickr30kEntities documents");
+        } finally {
+            pool.shutdownNow();
+        }
     }
 
     /**Returns a collection of documents from the database specified by
@@ -209,11 +438,30 @@ public class DocumentLoader
     public static Collection<Document> getDocumentSet(DBConnector conn, int crossVal,
                                                       boolean reviewedOnly, int numDocs)
     {
-        CachedRowSet rs;
+        return getDocumentSet(conn, crossVal, reviewedOnly, numDocs, new Random().nextLong());
+    }
+
+    /**Returns a collection of documents from the database specified by
+     * the conn; random documents are sampled client-side from the matching
+     * IDs (read in ID order through a cursor) with the given seed, such that
+     * the same seed reproduces the same sample
+     *
+     * @param conn          Database connector
+     * @param crossVal      The cross validation flag (-1: all; 0: dev; 1: train; 2: test)
+     * @param reviewedOnly  Whether to retrieve only reviewed document
+     * @param numDocs       The number of random docs to retrieve (&leq;0: all; &geq;1: random documents)
+     * @param seed          The random seed for sampling documents
+     * @return              Collection of documents
+     */
+    public static Collection<Document> getDocumentSet(DBConnector conn, int crossVal,
+                                                      boolean reviewedOnly, int numDocs,
+                                                      long seed)
+    {
         String query;
 
         //Get the valid documents
-        Set<String> imgIDs = new HashSet<>();
+        List<String> imgIDs = new ArrayList<>();
+        ResultSet rs = null;
         try{
             query = "SELECT img_id FROM image";
             if(crossVal >= 0 || reviewedOnly)
@@ -225,496 +473,937 @@ public class DocumentLoader
                     query += " AND ";
                 query += "reviewed=1";
             }
+
+            //order by img_id, so the reservoir sees IDs in the same
+            //order on every run and samples are reproducible (filtered
+            //queries may still sort, ie. when SQLite scans the
+            //(cross_val, reviewed) index, whose entries carry rowids)
+            query += " ORDER BY img_id;";
+
+            rs = conn.openCursor(query);
+            Iterator<String> idItr = getColumnIterator(rs, "img_id");
             if(numDocs > 0){
-                query += " ORDER BY ";
-                if(conn.getDBType() == DBConnector.DBType.SQLITE)
-                    query += "RANDOM() ";
-                else if(conn.getDBType() == DBConnector.DBType.MYSQL)
-                    query += "RAND() ";
-                query += "LIMIT " + numDocs;
+                Logger.log("Sampling %d documents (seed: %d)", numDocs, seed);
+                imgIDs = Util.reservoirSample(idItr, numDocs, new Random(seed));
+            } else {
+                idItr.forEachRemaining(imgIDs::add);
             }
-            query += ";";
-
-            rs = conn.query(query);
-            while(rs.next())
-                imgIDs.add(rs.getString("img_id"));
         } catch(Exception ex) {
             Logger.log(ex);
+        } finally {
+            conn.closeCursor(rs);
         }
 
         //return a document collection based on these random IDs
         return getDocumentSet(conn, imgIDs);
     }
 
-    /**Returns a collection of documents from the database specified by
-     * the conn
+    /**Returns shard shardIdx (of numShards) of the documents in the
+     * database specified by the conn, where documents are assigned to
+     * shards by getShardIdx(); only the IDs are read for documents
+     * outside the shard
      *
-     * @param conn      Database connector
-     * @param docIDs    Document IDs
-     * @return          Collection of documents
+     * @param conn          Database connector
+     * @param crossVal      The cross validation flag (-1: all; 0: dev; 1: train; 2: test)
+     * @param reviewedOnly  Whether to retrieve only reviewed document
+     * @param shardIdx      The shard to retrieve (0 &leq; shardIdx &lt; numShards)
+     * @param numShards     The number of shards
+     * @return              Collection of documents
      */
-    public static Collection<Document> getDocumentSet(DBConnector conn, Collection<String> docIDs)
+    public static Collection<Document> getDocumentShard(DBConnector conn, int crossVal,
+                                                        boolean reviewedOnly, int shardIdx,
+                                                        int numShards)
     {
-        CachedRowSet rs;
-        String query;
-        Map<String, Document> docDict = new HashMap<>();
-
-        //Convert the given docIDs to a query string component
-        Set<String> docIDs_enclosed = new HashSet<>();
-        docIDs.forEach(id -> docIDs_enclosed.add("'" + id + "'"));
-        String docIdStr = "(" + StringUtil.listToString(docIDs_enclosed, ",") + ")";
-
-        Logger.log("Initializing Documents from <image>");
-        query = "SELECT img_id, height, width, "+
-                "cross_val, reviewed, img_url, anno_comments "+
-                "FROM image "+
-                "WHERE img_id IN " + docIdStr;
-        try {
-            rs = conn.query(query);
-            while (rs.next()) {
-                Document d = new Document(rs.getString("img_id"));
-                d.height = rs.getInt("height");
-                d.width = rs.getInt("width");
-                d.crossVal = Util.castInteger(rs.getObject("cross_val"));
-                d.reviewed = rs.getBoolean("reviewed");
-                d.imgURL = rs.getString("img_url");
-                d.comments = rs.getString("anno_comments");
-                docDict.put(d.getID(), d);
-            }
-        } catch(Exception ex){
-            Logger.log(ex);
-            Logger.log("Error loading <image> table; cannot load documents");
-            return null;
+        checkShard(shardIdx, numShards);
+        String query = "SELECT img_id FROM image";
+        if(crossVal >= 0 || reviewedOnly)
+            query += " WHERE ";
+        if(crossVal >= 0)
+            query += "cross_val="+crossVal;
+        if(reviewedOnly){
+            if(crossVal >= 0)
+                query += " AND ";
+            query += "reviewed=1";
         }
+        query += ";";
 
-        Logger.log("Building Tokens and Captions from <token>");
-        query = "SELECT img_id, caption_idx, token_idx, " +
-                "token, lemma, pos_tag FROM token "+
-                "WHERE img_id IN " + docIdStr;
+        List<String> imgIDs = new ArrayList<>();
+        ResultSet rs = null;
         try{
-            rs = conn.query(query);
-            while(rs.next()){
-                String imgID = rs.getString("img_id");
-                int captionIdx = rs.getInt("caption_idx");
-                int tokenIdx = rs.getInt("token_idx");
-                String text = rs.getString("token");
-                String lemma = rs.getString("lemma");
-                String posTag = rs.getString("pos_tag");
-                Token t = new Token(imgID, captionIdx, tokenIdx,
-                        text, lemma, posTag);
-
-                //Add a new caption to this document, if this index
-                //doesn't already exist; add the Token to this caption
-                Caption c = docDict.get(imgID).getCaption(captionIdx);
-                if(c == null){
-                    c = new Caption(imgID, captionIdx);
-                    docDict.get(imgID).addCaption(c);
-                }
-                c.addToken(t);
+            rs = conn.openCursor(query);
+            Iterator<String> idItr = getColumnIterator(rs, "img_id");
+            while(idItr.hasNext()){
+                String imgID = idItr.next();
+                if(getShardIdx(imgID, numShards) == shardIdx)
+                    imgIDs.add(imgID);
             }
-        } catch(Exception ex){
+        } catch(Exception ex) {
             Logger.log(ex);
-            Logger.log("Error loading <token> table; cannot load documents");
-            return null;
+        } finally {
+            conn.closeCursor(rs);
         }
 
-        Logger.log("Partitioning Tokens into Chunks with <chunk>");
-        query = "SELECT img_id, caption_idx, chunk_idx, " +
-                "start_token_idx, end_token_idx, chunk_type "+
-                "FROM chunk WHERE img_id IN " + docIdStr;
-        try{
-            rs = conn.query(query);
-            while(rs.next()){
-                String imgID = rs.getString("img_id");
-                int captionIdx = rs.getInt("caption_idx");
-                int chunkIdx = rs.getInt("chunk_idx");
-                int startTokenIdx = rs.getInt("start_token_idx");
-                int endTokenIdx = rs.getInt("end_token_idx");
-                String chunkType = rs.getString("chunk_type");
-                docDict.get(imgID).getCaption(captionIdx).addChunk(chunkIdx,
-                        chunkType, startTokenIdx, endTokenIdx);
-            }
-        } catch(Exception ex){
-            Logger.log(ex);
-            Logger.log("Error loading <chunk> table; cannot load documents");
-            return null;
-        }
+        Logger.log("Loading shard %d/%d (%d documents)", shardIdx, numShards, imgIDs.size());
+        return getDocumentSet(conn, imgIDs);
+    }
 
-        Logger.log("Loading bounding boxes from <box>");
-        query = "SELECT img_id, box_id, x_min, y_min, " +
-                "x_max, y_max, category, super_category FROM box " +
-                "WHERE img_id IN " + docIdStr;
-        Map<String, Map<Integer, BoundingBox>> boxDict = new HashMap<>();
-        try{
-            rs = conn.query(query);
-            while(rs.next()){
-                String imgID = rs.getString("img_id");
-                int boxID = rs.getInt("box_id");
-                int xMin = rs.getInt("x_min");
-                int yMin = rs.getInt("y_min");
-                int xMax = rs.getInt("x_max");
-                int yMax = rs.getInt("y_max");
-                String category = rs.getString("category");
-                String superCat = rs.getString("super_category");
-                if(!boxDict.containsKey(imgID))
-                    boxDict.put(imgID, new HashMap<>());
-                boxDict.get(imgID).put(boxID,
-                    new BoundingBox(imgID, boxID, xMin,
-                    yMin, xMax, yMax, category, superCat));
-            }
-        } catch(Exception ex){
-            Logger.log(ex);
-        }
+    /**Returns the shard (in [0, numShards)) to which the document
+     * with the given img_id belongs; shards are assigned by the CRC32
+     * of the ID's UTF-8 bytes, so assignments are stable across
+     * processes, machines, and JVM versions (unlike String.hashCode(),
+     * which we don't want to rely on here)
+     *
+     * @param imgID
+     * @param numShards
+     * @return
+     */
+    public static int getShardIdx(String imgID, int numShards)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(imgID.getBytes(StandardCharsets.UTF_8));
+        return (int)(crc.getValue() % numShards);
+    }
 
-        Logger.log("Loading chains from <chain> and associating them with "+
-                "the bounding boxes from the previous step");
-        query = "SELECT img_id, chain_id, assoc_box_ids, " +
-                "is_scene, is_orig_nobox FROM chain "+
-                "WHERE img_id IN " + docIdStr;
-        Map<String, Map<Integer, Set<String>>> boxChainDict = new HashMap<>();
-        try{
-            rs = conn.query(query);
-            while(rs.next()){
-                String imgID = rs.getString("img_id");
-                String chainID = rs.getString("chain_id");
-                boolean isScene = rs.getBoolean("is_scene");
-                boolean isOrigNobox = rs.getBoolean("is_orig_nobox");
-                String assocBoxIDs = rs.getString("assoc_box_ids");
-                Chain c = new Chain(imgID, chainID);
-                c.isScene = isScene;
-                c.isOrigNobox = isOrigNobox;
-
-                if(assocBoxIDs != null && !assocBoxIDs.trim().isEmpty()){
-                    for(String assocBox : assocBoxIDs.split("\\|")){
-                        Integer boxID = Integer.parseInt(assocBox);
-
-                        if(!boxChainDict.containsKey(imgID))
-                            boxChainDict.put(imgID, new HashMap<>());
-                        if(!boxChainDict.get(imgID).containsKey(boxID))
-                            boxChainDict.get(imgID).put(boxID, new HashSet<>());
-                        boxChainDict.get(imgID).get(boxID).add(chainID);
+    /**Throws an IllegalArgumentException if shardIdx
+     * isn't a valid shard of numShards
+     *
+     * @param shardIdx
+     * @param numShards
+     */
+    private static void checkShard(int shardIdx, int numShards)
+    {
+        if(numShards < 1 || shardIdx < 0 || shardIdx >= numShards)
+            throw new IllegalArgumentException("Invalid shard " + shardIdx + " of " + numShards);
+    }
+
+    /**Returns an iterator over the given column's (string)
+     * values in the rows remaining in the cursor
+     *
+     * @param rs
+     * @param column
+     * @return
+     */
+    private static Iterator<String> getColumnIterator(ResultSet rs, String column)
+    {
+        return new Iterator<String>() {
+            private Boolean _hasNext = null;
+
+            @Override
+            public boolean hasNext()
+            {
+                if(_hasNext == null){
+                    try{
+                        _hasNext = rs.next();
+                    } catch(SQLException sqlEx) {
+                        throw new RuntimeException("Error reading " + column, sqlEx);
                     }
                 }
-                docDict.get(imgID).addChain(c);
+                return _hasNext;
             }
-            //Add the boxes
-            for(String imgID : boxDict.keySet()){
-                for(Integer boxID : boxDict.get(imgID).keySet()){
-                    Set<String> assocChains = new HashSet<>();
-                    if(boxChainDict.containsKey(imgID) && boxChainDict.get(imgID).containsKey(boxID))
-                        assocChains.addAll(boxChainDict.get(imgID).get(boxID));
-                    docDict.get(imgID).addBoundingBox(boxDict.get(imgID).get(boxID), assocChains);
+
+            @Override
+            public String next()
+            {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                _hasNext = null;
+                try{
+                    return rs.getString(column);
+                } catch(SQLException sqlEx) {
+                    throw new RuntimeException("Error reading " + column, sqlEx);
                 }
             }
+        };
+    }
 
-            //add chain 0 to all documents
-            for(Document d : docDict.values())
-                d.addChain(new Chain(d.getID(), "0"));
-        } catch(Exception ex){
-            Logger.log(ex);
-            Logger.log("Error loading <chain> table; cannot load documents");
-            return null;
+    /**Returns a collection of documents from the database specified by
+     * the conn
+     *
+     * @param conn      Database connector
+     * @param docIDs    Document IDs
+     * @return          Collection of documents
+     */
+    public static Collection<Document> getDocumentSet(DBConnector conn, Collection<String> docIDs)
+    {
+        return getDocumentSet(conn, docIDs, DEFAULT_ID_BATCH_SIZE, 1);
+    }
+
+    /**Returns a collection of documents from the database specified by
+     * the conn, consulting the given cache first and only querying
+     * the database for the documents it's missing (which are then
+     * added to the cache)
+     *
+     * NOTE: Cached Documents are shared between callers, and
+     *       must not be modified (see DocumentCache)
+     *
+     * @param conn      Database connector
+     * @param docIDs    Document IDs
+     * @param cache     Document cache
+     * @return          Collection of documents
+     */
+    public static Collection<Document> getDocumentSet(DBConnector conn, Collection<String> docIDs,
+                                                      DocumentCache cache)
+    {
+        return getDocumentSet(conn, docIDs, cache, LoadProfile.DEPENDENCIES);
+    }
+
+    /**Returns a collection of documents from the database specified by
+     * the conn, consulting the given cache first and loading the
+     * documents it's missing with the given profile (see LoadProfile);
+     * since parts left out of a profile are loaded on first access,
+     * cached Documents serve callers of any profile
+     *
+     * NOTE: Cached Documents are shared between callers, and
+     *       must not be modified (see DocumentCache)
+     *
+     * @param conn      Database connector
+     * @param docIDs    Document IDs
+     * @param cache     Document cache
+     * @param profile   The parts of each missing Document to load up front
+     * @return          Collection of documents
+     */
+    public static Collection<Document> getDocumentSet(DBConnector conn, Collection<String> docIDs,
+                                                      DocumentCache cache, LoadProfile profile)
+    {
+        Set<String> missedIDs = new HashSet<>();
+        Set<Document> docSet = new HashSet<>(cache.getAll(conn, new HashSet<>(docIDs), missedIDs));
+        if(!missedIDs.isEmpty()){
+            Collection<Document> missedDocs = getDocumentSet(conn, missedIDs, profile);
+            if(missedDocs == null)
+                return null;
+            cache.putAll(conn, missedDocs);
+            docSet.addAll(missedDocs);
         }
+        Logger.log("Document cache: %s", cache.toString());
+        return docSet;
+    }
 
-        Logger.log("Partitioning Tokens into Mentions with <mention>");
-        query = "SELECT img_id, caption_idx, mention_idx, " +
-                "start_token_idx, end_token_idx, card_str, " +
-                "chain_id, lexical_type FROM mention " +
-                "WHERE img_id IN " + docIdStr;
+    /**Returns a collection of documents from the database specified by
+     * the conn, loading only the parts included in the given profile
+     * up front (see LoadProfile)
+     *
+     * @param conn      Database connector
+     * @param docIDs    Document IDs
+     * @param profile   The parts of each Document to load up front
+     * @return          Collection of documents
+     */
+    public static Collection<Document> getDocumentSet(DBConnector conn, Collection<String> docIDs,
+                                                      LoadProfile profile)
+    {
+        return getDocumentSet(conn, docIDs, DEFAULT_ID_BATCH_SIZE, 1, profile);
+    }
+
+    /**Returns a collection of documents from the database specified by
+     * the conn; rather than building one enormous IN clause, the docIDs
+     * are split into batches of batchSize, each of which is loaded with
+     * parameterized queries (see getDocumentStream()), and numThreads
+     * batches are loaded simultaneously
+     *
+     * @param conn          Database connector
+     * @param docIDs        Document IDs
+     * @param batchSize     The number of IDs to bind per query (at most 999,
+     *                      SQLite's default limit)
+     * @param numThreads    The number of batches to load simultaneously
+     * @return              Collection of documents
+     */
+    public static Collection<Document> getDocumentSet(DBConnector conn, Collection<String> docIDs,
+                                                      int batchSize, int numThreads)
+    {
+        return getDocumentSet(conn, docIDs, batchSize, numThreads, LoadProfile.DEPENDENCIES);
+    }
+
+    /**Returns a collection of documents from the database specified by
+     * the conn, loaded in batches (see above) and with only the parts
+     * included in the given profile loaded up front (see LoadProfile)
+     *
+     * @param conn          Database connector
+     * @param docIDs        Document IDs
+     * @param batchSize     The number of IDs to bind per query (at most 999,
+     *                      SQLite's default limit)
+     * @param numThreads    The number of batches to load simultaneously
+     * @param profile       The parts of each Document to load up front
+     * @return              Collection of documents
+     */
+    public static Collection<Document> getDocumentSet(DBConnector conn, Collection<String> docIDs,
+                                                      int batchSize, int numThreads,
+                                                      LoadProfile profile)
+    {
+        batchSize = Math.max(1, Math.min(batchSize, MAX_ID_BATCH_SIZE));
+        List<String> docIdList = new ArrayList<>(new HashSet<>(docIDs));
+        List<List<String>> batches = new ArrayList<>();
+        for(int i=0; i<docIdList.size(); i+=batchSize)
+            batches.add(docIdList.subList(i, Math.min(i + batchSize, docIdList.size())));
+
+        //each batch holds one pooled connection per table, so only
+        //run as many batches as the pool can support at once
+        numThreads = Math.max(1, Math.min(numThreads,
+                conn.getMaxPoolSize() / DocumentIterator.NUM_CURSORS));
+
+        Logger.log("Loading %d documents in %d batches", docIdList.size(), batches.size());
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
         try{
-            rs = conn.query(query);
-            while(rs.next()){
-                String imgID = rs.getString("img_id");
-                int captionIdx = rs.getInt("caption_idx");
-                int mentionIdx = rs.getInt("mention_idx");
-                int startTokenIdx = rs.getInt("start_token_idx");
-                int endTokenIdx = rs.getInt("end_token_idx");
-                String cardStr = rs.getString("card_str");
-                Cardinality card = null;
-                try{
-                    if(cardStr != null)
-                        card = new Cardinality(cardStr);
-                }catch(Exception ex){
-                    Logger.log(ex);
-                }
-                String chainID = rs.getString("chain_id");
-                String lexicalType = rs.getString("lexical_type");
+            List<Future<List<Document>>> futures = new ArrayList<>();
+            for(List<String> batch : batches){
+                futures.add(executor.submit(() -> {
+                    List<Document> docList = new ArrayList<>();
+                    try(Stream<Document> docStream = getDocumentStream(conn, batch, profile)){
+                        docStream.forEach(docList::add);
+                    }
+                    return docList;
+                }));
+            }
 
-                Mention m = docDict.get(imgID).getCaption(captionIdx).addMention(mentionIdx,
-                        lexicalType, chainID, card, startTokenIdx, endTokenIdx);
-                docDict.get(imgID).addMentionToChain(m);
+            Set<Document> docSet = new HashSet<>();
+            for(int i=0; i<futures.size(); i++){
+                docSet.addAll(futures.get(i).get());
+                Logger.logStatus("Loaded %d (%.2f%%) batches", i+1,
+                        100.0 * (i+1) / futures.size());
             }
-        } catch(Exception ex){
+            Logger.log("Document loading complete");
+            return docSet;
+        } catch(Exception ex) {
             Logger.log(ex);
-            Logger.log("Error loading <mention> table; cannot load documents");
+            Logger.log("Error loading document batch; cannot load documents");
             return null;
+        } finally {
+            executor.shutdownNow();
         }
+    }
 
-        Logger.log("Reading dependency trees from <dependency>");
-        query = "SELECT img_id, caption_idx, gov_token_idx, " +
-                "dep_token_idx, relation FROM dependency " +
-                "WHERE img_id IN " + docIdStr;
-        Map<String, Map<Integer, Set<String>>> depDict = new HashMap<>();
-        try{
-            rs = conn.query(query);
-            while(rs.next()){
-                String imgID = rs.getString("img_id");
-                int captionIdx = rs.getInt("caption_idx");
-                int govTokenIdx = rs.getInt("gov_token_idx");
-                int depTokenIdx = rs.getInt("dep_token_idx");
-                String relation = rs.getString("relation");
-                if(!depDict.containsKey(imgID))
-                    depDict.put(imgID, new HashMap<>());
-                if(!depDict.get(imgID).containsKey(captionIdx))
-                    depDict.get(imgID).put(captionIdx, new HashSet<>());
-                depDict.get(imgID).get(captionIdx).add(govTokenIdx +
-                        "|" + relation + "|" + depTokenIdx);
+    /**Returns a stream of all the Documents in the database specified by
+     * the conn, where Documents are read through forward-only cursors and
+     * emitted as soon as their rows are complete (rather than once the
+     * whole corpus is in memory); the stream should be closed when finished
+     *
+     * @param conn      Database connector
+     * @return          Stream of documents, ordered by ID
+     * @throws Exception
+     */
+    public static Stream<Document> getDocumentStream(DBConnector conn) throws Exception
+    {
+        return toStream(new DocumentIterator(conn));
+    }
+
+    /**Returns a stream of the Documents with the given IDs from the
+     * database specified by the conn, where Documents are read through
+     * forward-only cursors and emitted as soon as their rows are complete;
+     * the stream should be closed when finished
+     *
+     * @param conn      Database connector
+     * @param docIDs    Document IDs
+     * @return          Stream of documents, ordered by ID
+     * @throws Exception
+     */
+    public static Stream<Document> getDocumentStream(DBConnector conn,
+                                                     Collection<String> docIDs) throws Exception
+    {
+        return getDocumentStream(conn, docIDs, LoadProfile.DEPENDENCIES);
+    }
+
+    /**Returns a stream of the Documents with the given IDs from the
+     * database specified by the conn (see above), loading only the
+     * parts included in the given profile up front (see LoadProfile);
+     * the (sorted) IDs are bound in batches of DEFAULT_ID_BATCH_SIZE,
+     * so no query exceeds the database's placeholder limit, and each
+     * batch's cursors are only opened once the previous batch is
+     * exhausted
+     *
+     * @param conn      Database connector
+     * @param docIDs    Document IDs
+     * @param profile   The parts of each Document to load up front
+     * @return          Stream of documents, ordered by ID
+     * @throws Exception
+     */
+    public static Stream<Document> getDocumentStream(DBConnector conn, Collection<String> docIDs,
+                                                     LoadProfile profile) throws Exception
+    {
+        List<String> docIdList = new ArrayList<>(new TreeSet<>(docIDs));
+        List<List<String>> batches = new ArrayList<>();
+        for(int i=0; i<docIdList.size(); i+=DEFAULT_ID_BATCH_SIZE)
+            batches.add(docIdList.subList(i, Math.min(i + DEFAULT_ID_BATCH_SIZE, docIdList.size())));
+        if(batches.size() == 1)
+            return toStream(openBatch(conn, batches.get(0), profile));
+        return toStream(new BatchedDocumentIterator(conn, batches, profile));
+    }
+
+    /**Returns a DocumentIterator over the Documents with the
+     * given IDs, bound to a single IN clause
+     *
+     * @param conn
+     * @param docIDs
+     * @param profile
+     * @return
+     * @throws Exception
+     */
+    private static DocumentIterator openBatch(DBConnector conn, List<String> docIDs,
+                                              LoadProfile profile) throws Exception
+    {
+        List<String> placeholders = new ArrayList<>();
+        docIDs.forEach(id -> placeholders.add("?"));
+        String imgFilter = "WHERE img_id IN (" +
+                StringUtil.listToString(placeholders, ",") + ")";
+        return new DocumentIterator(conn, profile, imgFilter, docIDs.toArray());
+    }
+
+    /**Wraps the given Document iterator in a sequential stream
+     * that closes the iterator when the stream is closed
+     *
+     * @param docItr
+     * @return
+     */
+    private static Stream<Document> toStream(DocumentCursor docItr)
+    {
+        Spliterator<Document> split = Spliterators.spliteratorUnknownSize(docItr,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(split, false).onClose(docItr::close);
+    }
+
+    /**A BatchedDocumentIterator chains the DocumentIterators of
+     * several ID batches, opening each batch's cursors only when
+     * the previous batch is exhausted (and closed), such that at
+     * most one batch holds connections at a time
+     */
+    private static class BatchedDocumentIterator implements DocumentCursor
+    {
+        private DBConnector _conn;
+        private Iterator<List<String>> _batchItr;
+        private LoadProfile _profile;
+        private DocumentIterator _current;
+
+        BatchedDocumentIterator(DBConnector conn, List<List<String>> batches,
+                                LoadProfile profile)
+        {
+            _conn = conn;
+            _batchItr = batches.iterator();
+            _profile = profile;
+            _current = null;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while(_current == null || !_current.hasNext()){
+                //(exhausted iterators close themselves)
+                _current = null;
+                if(!_batchItr.hasNext())
+                    return false;
+                try{
+                    _current = openBatch(_conn, _batchItr.next(), _profile);
+                } catch(Exception ex) {
+                    throw toUnchecked(ex, "Error reading documents from database");
+                }
             }
-            for(String imgID : depDict.keySet())
-                for(Integer capIdx : depDict.get(imgID).keySet())
-                    docDict.get(imgID).getCaption(capIdx).setRootNode(depDict.get(imgID).get(capIdx));
+            return true;
+        }
 
-        } catch(Exception ex) {
-            Logger.log(ex);
+        @Override
+        public Document next()
+        {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return _current.next();
+        }
+
+        @Override
+        public void close()
+        {
+            if(_current != null)
+                _current.close();
+            _current = null;
+            while(_batchItr.hasNext())
+                _batchItr.next();
         }
-        Logger.log("Document loading complete");
-        return new HashSet<>(docDict.values());
     }
 
     /**Populates an ostensibly empty database (specified with the conn)
-     * with the Documents in the given docSet
+     * with the given Documents (ie. a Collection, or a Stream's
+     * iterator); SQLite databases are populated in bulk load mode,
+     * where numThreads is ignored in favor of a single writer, and
+     * each of the eight tables may hold up to the connector's bulk
+     * transaction size of rows in memory (lower it with
+     * DBConnector.setBulkTxnSize() to trade speed for memory)
      *
      * @param conn
-     * @param docSet
+     * @param docs
      * @param batchSize
      * @param numThreads
      * @throws Exception
      */
-    public static void populateDocumentDB(DBConnector conn, Collection<Document> docSet,
+    public static void populateDocumentDB(DBConnector conn, Iterable<Document> docs,
+                      int batchSize, int numThreads) throws Exception
+    {
+        boolean bulkLoad = conn.getDBType() == DBConnector.DBType.SQLITE;
+        if(bulkLoad)
+            conn.startBulkLoad();
+        try{
+            _populateDocumentDB(conn, docs, batchSize, numThreads);
+        } finally {
+            if(bulkLoad)
+                conn.endBulkLoad();
+        }
+    }
+
+    /**Populates the database with the given docs' tables as a
+     * pipeline: a single walker emits each Document's rows into
+     * bounded per-table queues, which table writers drain (in
+     * transactions of batchSize rows) concurrently; as a result,
+     * each table holds at most ROW_QUEUE_SIZE queued rows plus one
+     * flush's worth in memory, regardless of the number of documents.
+     * A flush is batchSize x threadsPerTable rows, or during bulk loads
+     * the connector's bulk transaction size (see
+     * DBConnector.setBulkTxnSize()), if larger
+     *
+     * @param conn
+     * @param docs
+     * @param batchSize
+     * @param numThreads
+     * @throws Exception
+     */
+    private static void _populateDocumentDB(DBConnector conn, Iterable<Document> docs,
                       int batchSize, int numThreads) throws Exception
     {
-        String query;
-        Set<Object[]> paramSet;
         String insertPrefix = "INSERT";
         if(conn.getDBType() == DBConnector.DBType.SQLITE)
             insertPrefix += " OR IGNORE";
         else if(conn.getDBType() == DBConnector.DBType.MYSQL)
             insertPrefix += " IGNORE";
         insertPrefix += " INTO ";
+        Map<String, String> insertQueries = new LinkedHashMap<>();
+
+        //DocumentIterator merge-joins tables on img_id with
+        //String.compareTo(), so img_ids are collated by their bytes
+        //(SQLite's default; MySQL's is case-insensitive), letting
+        //cursors stream in primary key order without a sort
+        String imgIdType = "VARCHAR(20)";
+        if(conn.getDBType() == DBConnector.DBType.MYSQL)
+            imgIdType += " CHARACTER SET ascii COLLATE ascii_bin";
 
         /* The <image> table stores basic image information,
          * like the ID, dimentions, and data split */
         Logger.log("Creating <image>");
-        query = "CREATE TABLE IF NOT EXISTS image (img_id VARCHAR(20), "+
+        conn.createTable("CREATE TABLE IF NOT EXISTS image (img_id " + imgIdType + ", "+
                 "height INT, width INT, reviewed TINYINT(1), cross_val "+
                 "TINYINT(1), anno_comments TEXT, img_url TEXT, " +
-                "PRIMARY KEY(img_id));";
-        conn.createTable(query);
-        query = insertPrefix + "image(img_id, height, width, reviewed, "+
-                "cross_val, anno_comments, img_url) "+
-                "VALUES (?, ?, ?, ?, ?, ?, ?);";
-        paramSet = new HashSet<>();
-        for(Document d : docSet) {
-            paramSet.add(new Object[]{d.getID(), d.height,
-                    d.width, d.reviewed, d.crossVal,
-                    d.comments, d.imgURL});
-        }
-        conn.update(query, paramSet, batchSize, numThreads);
+                "PRIMARY KEY(img_id));");
+        insertQueries.put("image", insertPrefix + "image(img_id, height, width, "+
+                "reviewed, cross_val, anno_comments, img_url) "+
+                "VALUES (?, ?, ?, ?, ?, ?, ?);");
 
         /* While not strictly necessary, the <caption> table
          * contains the full caption string so we can easily
          * look up captions of various types */
         Logger.log("Creating <caption>");
-        query = "CREATE TABLE IF NOT EXISTS caption (img_id VARCHAR(20), "+
+        conn.createTable("CREATE TABLE IF NOT EXISTS caption (img_id " + imgIdType + ", "+
                 "caption_idx TINYINT(4), caption TEXT, " +
-                "PRIMARY KEY(img_id, caption_idx));";
-        conn.createTable(query);
-        query = insertPrefix + "caption(img_id, caption_idx, caption) "+
-                               "VALUES (?, ?, ?);";
-        paramSet = new HashSet<>();
-        for(Document d : docSet)
-            for(Caption c : d.getCaptionList())
-                paramSet.add(new Object[]{d.getID(), c.getIdx(), c.toString()});
-        conn.update(query, paramSet, batchSize, numThreads);
+                "PRIMARY KEY(img_id, caption_idx));");
+        insertQueries.put("caption", insertPrefix + "caption(img_id, caption_idx, "+
+                "caption) VALUES (?, ?, ?);");
 
         /* The <token> table contains the core token information,
          * including the text, lemma, and part of speech tag*/
         Logger.log("Creating <token>");
-        query = "CREATE TABLE IF NOT EXISTS token (img_id VARCHAR(20), "+
+        conn.createTable("CREATE TABLE IF NOT EXISTS token (img_id " + imgIdType + ", "+
                 "caption_idx TINYINT(4), token_idx TINYINT(4), " +
                 "token VARCHAR(50), lemma VARCHAR(50), pos_tag VARCHAR(6), "+
-                "PRIMARY KEY(img_id, caption_idx, token_idx));";
-        conn.createTable(query);
-        query = insertPrefix + "token(img_id, caption_idx, "+
+                "PRIMARY KEY(img_id, caption_idx, token_idx));");
+        insertQueries.put("token", insertPrefix + "token(img_id, caption_idx, "+
                 "token_idx, token, lemma, pos_tag) "+
-                "VALUES (?, ?, ?, ?, ?, ?);";
-        paramSet = new HashSet<>();
-        for(Document d : docSet){
-            for(Caption c : d.getCaptionList()) {
-                for (Token t : c.getTokenList()) {
-                    paramSet.add(new Object[]{d.getID(), c.getIdx(),
-                            t.getIdx(), t.toString(), t.getLemma(),
-                            t.getPosTag()});
-                }
-            }
-        }
-        conn.update(query, paramSet, batchSize, numThreads);
+                "VALUES (?, ?, ?, ?, ?, ?);");
 
         /* The <chunk> table does not contain the chunks themselves, but
          * enables us to organize tokens into chunks */
         Logger.log("Creating <chunk>");
-        query = "CREATE TABLE IF NOT EXISTS chunk (img_id VARCHAR(20), "+
+        conn.createTable("CREATE TABLE IF NOT EXISTS chunk (img_id " + imgIdType + ", "+
                 "caption_idx TINYINT(4), chunk_idx TINYINT(4), " +
                 "start_token_idx TINYINT(4), end_token_idx TINYINT(4), " +
                 "chunk_type VARCHAR(10), PRIMARY KEY(img_id, "+
-                "caption_idx, chunk_idx));";
-        conn.createTable(query);
-        query = insertPrefix + "chunk(img_id, caption_idx, "+
+                "caption_idx, chunk_idx));");
+        insertQueries.put("chunk", insertPrefix + "chunk(img_id, caption_idx, "+
                 "chunk_idx, start_token_idx, end_token_idx, chunk_type) "+
-                "VALUES (?, ?, ?, ?, ?, ?);";
-        paramSet = new HashSet<>();
-        for(Document d : docSet){
-            for(Caption c : d.getCaptionList()) {
-                for(Chunk ch : c.getChunkList()){
-                    //It's possible, in the old version of the data,
-                    //for there to be empty chunks. Log these, but
-                    //ignore them otherwise
-                    if(!ch.toString().isEmpty()){
-                        int[] tokenIndices = ch.getTokenRange();
-                        paramSet.add(new Object[]{d.getID(), c.getIdx(),
-                                ch.getIdx(), tokenIndices[0], tokenIndices[1],
-                                ch.getChunkType()});
-                    } else {
-                        Logger.log("Error: missing chunk %d (doc:%s;cap:%d",
-                                    ch.getIdx(), d.getID(), c.getIdx());
-                    }
-                }
-            }
-        }
-        conn.update(query, paramSet, batchSize, numThreads);
+                "VALUES (?, ?, ?, ?, ?, ?);");
 
         /* Like the <chunk> table, the <mention> table does not
          * contain mentions, but the indices necessary to build them
          * from tokens */
         Logger.log("Creating <mention>");
-        query = "CREATE TABLE IF NOT EXISTS mention (img_id VARCHAR(20), "+
+        conn.createTable("CREATE TABLE IF NOT EXISTS mention (img_id " + imgIdType + ", "+
                 "caption_idx TINYINT(4), mention_idx TINYINT(4), " +
                 "start_token_idx TINYINT(4), end_token_idx TINYINT(4), " +
                 "card_str VARCHAR(10), chain_id VARCHAR(10), "+
                 "lexical_type VARCHAR(20), PRIMARY KEY(img_id, "+
-                "caption_idx, mention_idx));";
-        conn.createTable(query);
-        query = insertPrefix + "mention(img_id, caption_idx, mention_idx, "+
-                "start_token_idx, end_token_idx, card_str, chain_id, "+
-                "lexical_type) VALUES (?, ?, ?, ?, ?, ?, ?, ?);";
-        paramSet = new HashSet<>();
-        for(Document d : docSet){
-            for(Caption c : d.getCaptionList()) {
-                for(Mention m : c.getMentionList()){
-                    int[] tokenIndices = m.getTokenRange();
-                    String cardStr = null;
-                    if(m.getCardinality() != null)
-                        cardStr = m.getCardinality().toString();
-                    paramSet.add(new Object[]{d.getID(), c.getIdx(),
-                        m.getIdx(), tokenIndices[0], tokenIndices[1],
-                        cardStr, m.getChainID(), m.getLexicalType()});
-                }
-            }
-        }
-        conn.update(query, paramSet, batchSize, numThreads);
+                "caption_idx, mention_idx));");
+        insertQueries.put("mention", insertPrefix + "mention(img_id, caption_idx, "+
+                "mention_idx, start_token_idx, end_token_idx, card_str, chain_id, "+
+                "lexical_type) VALUES (?, ?, ?, ?, ?, ?, ?, ?);");
 
         /* The <chain> table associates chains to boxes
          * (via a single pipe-separated string) as well as
          * specifies whether it should have the scene flag */
         Logger.log("Creating <chain>");
-        query = "CREATE TABLE IF NOT EXISTS chain (img_id VARCHAR(20), "+
+        conn.createTable("CREATE TABLE IF NOT EXISTS chain (img_id " + imgIdType + ", "+
                 "chain_id VARCHAR(10), assoc_box_ids VARCHAR(250), "+
                 "is_scene TINYINT(1), is_orig_nobox TINYINT(1), "+
-                "PRIMARY KEY(img_id, chain_id));";
-        conn.createTable(query);
-        query = insertPrefix + "chain(img_id, chain_id, assoc_box_ids, "+
-                "is_scene, is_orig_nobox) VALUES (?, ?, ?, ?, ?);";
-        paramSet = new HashSet<>();
-        for(Document d : docSet){
-            for(Chain c : d.getChainSet()){
-                Set<String> boxIDs = new HashSet<>();
-                c.getBoundingBoxSet().forEach(b -> boxIDs.add(""+b.getIdx()));
-                String boxIdStr = null;
-                if(!boxIDs.isEmpty())
-                    boxIdStr = StringUtil.listToString(boxIDs,"|");
-                paramSet.add(new Object[]{d.getID(), c.getID(),
-                        boxIdStr, c.isScene, c.isOrigNobox});
-            }
-        }
-        conn.update(query, paramSet, batchSize, numThreads);
+                "PRIMARY KEY(img_id, chain_id));");
+        insertQueries.put("chain", insertPrefix + "chain(img_id, chain_id, "+
+                "assoc_box_ids, is_scene, is_orig_nobox) VALUES (?, ?, ?, ?, ?);");
 
         /* The <box> table contains the dataset's bounding boxes
          */
         Logger.log("Creating <box>");
-        query = "CREATE TABLE IF NOT EXISTS box (img_id VARCHAR(20), "+
+        conn.createTable("CREATE TABLE IF NOT EXISTS box (img_id " + imgIdType + ", "+
                 "box_id INT, x_min INT, y_min INT, x_max INT, "+
                 "y_max INT, category TEXT, super_category TEXT, "+
-                "PRIMARY KEY(img_id, box_id));";
-        conn.createTable(query);
-        query = insertPrefix + "box(img_id, box_id, x_min, y_min, " +
-                "x_max, y_max, category, super_category) "+
-                "VALUES (?, ?, ?, ?, ?, ?, ?, ?);";
-        paramSet = new HashSet<>();
-        for(Document d : docSet){
-            for(BoundingBox b : d.getBoundingBoxSet()){
-                paramSet.add(new Object[]{d.getID(), b.getIdx(), b.getXMin(),
-                        b.getYMin(), b.getXMax(), b.getYMax(),
-                        b.getCategory(), b.getSuperCategory()});
-            }
-        }
-        conn.update(query, paramSet, batchSize, numThreads);
-
+                "PRIMARY KEY(img_id, box_id));");
+        insertQueries.put("box", insertPrefix + "box(img_id, box_id, x_min, "+
+                "y_min, x_max, y_max, category, super_category) "+
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?);");
 
         /* The <dependency> table contains arcs constructed from
          * the Stanford Dependency parser
          */
         Logger.log("Creating <dependency>");
+        conn.createTable("CREATE TABLE IF NOT EXISTS dependency (img_id " + imgIdType + ", "+
+                "caption_idx TINYINT(4), gov_token_idx TINYINT(4), "+
+                "dep_token_idx TINYINT(4), relation VARCHAR(10), "+
+                "PRIMARY KEY(img_id, caption_idx, gov_token_idx, dep_token_idx));");
+        insertQueries.put("dependency", insertPrefix + "dependency(img_id, "+
+                "caption_idx, gov_token_idx, dep_token_idx, relation) "+
+                "VALUES (?, ?, ?, ?, ?);");
 
+        //Start a writer for each table, splitting our threads
+        //between them
+        int threadsPerTable = Math.max(1, numThreads / insertQueries.size());
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Map<String, BlockingQueue<Object[]>> queues = new HashMap<>();
+        List<Future<Integer>> writers = new ArrayList<>();
+        ExecutorService writerPool = Executors.newFixedThreadPool(insertQueries.size());
+        for(String table : insertQueries.keySet()){
+            BlockingQueue<Object[]> queue = new ArrayBlockingQueue<>(ROW_QUEUE_SIZE);
+            queues.put(table, queue);
+            writers.add(writerPool.submit(new TableWriter(conn, table,
+                    insertQueries.get(table), queue, batchSize,
+                    threadsPerTable, failure)));
+        }
+
+        //Walk the documents, emitting their rows; if the walk fails,
+        //the writers discard the remaining rows (rather than committing
+        //a partial corpus), and are joined before the failure propagates
         StanfordParser parser = new StanfordParser();
-        int totalCaps = 0;
-        for(Document d : docSet)
-            totalCaps += d.getCaptionList().size();
-        int numCaps = 0;
-        for(Document d : docSet) {
-            for (Caption c : d.getCaptionList()) {
-                c.setRootNode(parser.predict(c));
-                numCaps++;
-                Logger.logStatus("Parsed %d (%.2f%%) captions",
-                        numCaps, 100.0 * (double)numCaps / totalCaps);
+        int numDocs = 0, numRows;
+        try{
+            for(Document d : docs){
+                if(failure.get() != null)
+                    break;
+                emitDocumentRows(d, parser, queues);
+                numDocs++;
+                Logger.logStatus("Emitted %d documents", numDocs);
             }
+        } catch(Throwable t) {
+            failure.compareAndSet(null, t instanceof Exception ?
+                    (Exception)t : new ExecutionException(t));
+            throw t;
+        } finally {
+            numRows = joinWriters(queues, writerPool, writers, failure);
         }
-        query = "CREATE TABLE IF NOT EXISTS dependency (img_id VARCHAR(20), "+
-                "caption_idx TINYINT(4), gov_token_idx TINYINT(4), "+
-                "dep_token_idx TINYINT(4), relation VARCHAR(10), "+
-                "PRIMARY KEY(img_id, caption_idx, gov_token_idx, dep_token_idx));";
-        conn.createTable(query);
-        query = insertPrefix + "dependency(img_id, caption_idx, gov_token_idx, "+
-                "dep_token_idx, relation) VALUES (?, ?, ?, ?, ?);";
-        paramSet = new HashSet<>();
-        for(Document d : docSet){
-            for(Caption c : d.getCaptionList()){
-                DependencyNode root = c.getRootNode();
-                if(root != null) {
-                    for (DependencyNode node : root.getAllNodesInTree()) {
-                        int depTokenIdx = node.getToken().getIdx();
-                        int govTokenIdx = -1;
-                        String rel = "ROOT";
-                        if (node.getGovernor() != null) {
-                            govTokenIdx = node.getGovernor().getToken().getIdx();
-                            rel = node.getRelationToGovernor();
-                        }
-                        paramSet.add(new Object[]{d.getID(), c.getIdx(),
-                                govTokenIdx, depTokenIdx, rel});
+        if(failure.get() != null)
+            throw failure.get();
+        Logger.log("Wrote %d rows for %d documents", numRows, numDocs);
+
+        /* Secondary indices are only created once the tables are
+         * populated, so inserts needn't maintain them */
+        createIndices(conn, false);
+    }
+
+    /**Signals each table writer that there are no more rows and
+     * waits for all of them to finish, returning the number of rows
+     * written; writer failures are recorded in failure. Interruptions
+     * are recorded as well (so writers discard their remaining rows),
+     * but never cut the wait short, since no writer may outlive the load
+     *
+     * @param queues
+     * @param writerPool
+     * @param writers
+     * @param failure
+     * @return
+     */
+    private static int joinWriters(Map<String, BlockingQueue<Object[]>> queues,
+                                   ExecutorService writerPool, List<Future<Integer>> writers,
+                                   AtomicReference<Exception> failure)
+    {
+        boolean interrupted = false;
+        for(BlockingQueue<Object[]> queue : queues.values()){
+            while(true){
+                try{
+                    queue.put(END_OF_ROWS);
+                    break;
+                } catch(InterruptedException ex) {
+                    interrupted = true;
+                    failure.compareAndSet(null, ex);
+                }
+            }
+        }
+        writerPool.shutdown();
+
+        int numRows = 0;
+        for(Future<Integer> writer : writers){
+            while(true){
+                try{
+                    numRows += writer.get();
+                    break;
+                } catch(InterruptedException ex) {
+                    interrupted = true;
+                    failure.compareAndSet(null, ex);
+                } catch(ExecutionException ex) {
+                    failure.compareAndSet(null, ex.getCause() instanceof Exception ?
+                            (Exception)ex.getCause() : ex);
+                    break;
+                }
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        return numRows;
+    }
+
+    /**Emits the rows for each of the given Document's tables
+     * into the given (per-table) queues, parsing its captions'
+     * dependency trees along the way
+     *
+     * @param d
+     * @param parser
+     * @param queues
+     * @throws InterruptedException
+     */
+    private static void emitDocumentRows(Document d, StanfordParser parser,
+            Map<String, BlockingQueue<Object[]>> queues) throws InterruptedException
+    {
+        queues.get("image").put(new Object[]{d.getID(), d.height,
+                d.width, d.reviewed, d.crossVal,
+                d.comments, d.imgURL});
+
+        for(Caption c : d.getCaptionList()) {
+            queues.get("caption").put(new Object[]{d.getID(), c.getIdx(), c.toString()});
+
+            for (Token t : c.getTokenList()) {
+                queues.get("token").put(new Object[]{d.getID(), c.getIdx(),
+                        t.getIdx(), t.toString(), t.getLemma(),
+                        t.getPosTag()});
+            }
+
+            for(Chunk ch : c.getChunkList()){
+                //It's possible, in the old version of the data,
+                //for there to be empty chunks. Log these, but
+                //ignore them otherwise
+                if(!ch.toString().isEmpty()){
+                    int[] tokenIndices = ch.getTokenRange();
+                    queues.get("chunk").put(new Object[]{d.getID(), c.getIdx(),
+                            ch.getIdx(), tokenIndices[0], tokenIndices[1],
+                            ch.getChunkType()});
+                } else {
+                    Logger.log("Error: missing chunk %d (doc:%s;cap:%d",
+                                ch.getIdx(), d.getID(), c.getIdx());
+                }
+            }
+
+            for(Mention m : c.getMentionList()){
+                int[] tokenIndices = m.getTokenRange();
+                String cardStr = null;
+                if(m.getCardinality() != null)
+                    cardStr = m.getCardinality().toString();
+                queues.get("mention").put(new Object[]{d.getID(), c.getIdx(),
+                    m.getIdx(), tokenIndices[0], tokenIndices[1],
+                    cardStr, m.getChainID(), m.getLexicalType()});
+            }
+
+            c.setRootNode(parser.predict(c));
+            DependencyNode root = c.getRootNode();
+            if(root != null) {
+                for (DependencyNode node : root.getAllNodesInTree()) {
+                    int depTokenIdx = node.getToken().getIdx();
+                    int govTokenIdx = -1;
+                    String rel = "ROOT";
+                    if (node.getGovernor() != null) {
+                        govTokenIdx = node.getGovernor().getToken().getIdx();
+                        rel = node.getRelationToGovernor();
                     }
+                    queues.get("dependency").put(new Object[]{d.getID(), c.getIdx(),
+                            govTokenIdx, depTokenIdx, rel});
                 }
             }
         }
-        conn.update(query, paramSet, batchSize, numThreads);
+
+        for(Chain c : d.getChainSet()){
+            Set<String> boxIDs = new HashSet<>();
+            c.getBoundingBoxSet().forEach(b -> boxIDs.add(""+b.getIdx()));
+            String boxIdStr = null;
+            if(!boxIDs.isEmpty())
+                boxIdStr = StringUtil.listToString(boxIDs,"|");
+            queues.get("chain").put(new Object[]{d.getID(), c.getID(),
+                    boxIdStr, c.isScene, c.isOrigNobox});
+        }
+
+        for(BoundingBox b : d.getBoundingBoxSet()){
+            queues.get("box").put(new Object[]{d.getID(), b.getIdx(), b.getXMin(),
+                    b.getYMin(), b.getXMax(), b.getYMax(),
+                    b.getCategory(), b.getSuperCategory()});
+        }
+    }
+
+    /**Creates the document tables' secondary indices (if they don't
+     * already exist) and updates the database's statistics, so the
+     * planner uses them; if rebuild is specified, existing tables and
+     * indices are rebuilt first (ie. for a database whose indices are
+     * stale or fragmented after repeated loads)
+     *
+     * @param conn
+     * @param rebuild
+     * @throws Exception
+     */
+    public static void createIndices(DBConnector conn, boolean rebuild) throws Exception
+    {
+        String[] tables = {"image", "caption", "token", "chunk",
+                           "mention", "chain", "box", "dependency"};
+        boolean isSqlite = conn.getDBType() == DBConnector.DBType.SQLITE;
+
+        if(rebuild){
+            for(String table : tables){
+                Logger.log("Rebuilding <%s>", table);
+                if(isSqlite)
+                    conn.execute("REINDEX " + table + ";");
+                else
+                    conn.execute("OPTIMIZE TABLE " + table + ";");
+            }
+        }
+
+        for(String[] index : SECONDARY_INDICES){
+            Logger.log("Indexing <%s> on (%s)", index[0], index[2]);
+            if(isSqlite){
+                conn.execute("CREATE INDEX IF NOT EXISTS " + index[1] +
+                             " ON " + index[0] + "(" + index[2] + ");");
+            } else {
+                //MySQL has no CREATE INDEX IF NOT EXISTS
+                CachedRowSet rs = conn.query("SELECT COUNT(*) FROM " +
+                        "information_schema.statistics WHERE table_schema=DATABASE() " +
+                        "AND table_name=? AND index_name=?", index[0], index[1]);
+                rs.next();
+                if(rs.getInt(1) == 0)
+                    conn.execute("CREATE INDEX " + index[1] + " ON " +
+                                 index[0] + "(" + index[2] + ");");
+            }
+        }
+
+        Logger.log("Analyzing tables");
+        if(isSqlite)
+            conn.execute("ANALYZE;");
+        else
+            conn.execute("ANALYZE TABLE " + StringUtil.listToString(tables, ", ") + ";");
+    }
+
+    /**Inserts the given rows into the given table, throwing an
+     * exception (after all batches have run) if any batch failed
+     *
+     * @param conn
+     * @param table
+     * @param query
+     * @param paramSet
+     * @param batchSize
+     * @param numThreads
+     * @throws Exception
+     */
+    private static void updateTable(DBConnector conn, String table, String query,
+                                    Collection<Object[]> paramSet, int batchSize,
+                                    int numThreads) throws Exception
+    {
+        DBConnector.UpdateResult result =
+                conn.update(query, paramSet, batchSize, numThreads);
+        if(!result.isSuccessful()){
+            List<DBConnector.BatchResult> failedBatches = result.getFailedBatches();
+            throw new Exception("Failed to write " + result.getRowsFailed() +
+                    " <" + table + "> rows in " + failedBatches.size() +
+                    " batches", failedBatches.get(0).getError());
+        }
+    }
+
+    /**A TableWriter drains a single table's row queue,
+     * writing its rows in batches, until it receives
+     * END_OF_ROWS; after any table fails, remaining rows
+     * are drained (so the walker never blocks) but discarded
+     */
+    private static class TableWriter implements Callable<Integer>
+    {
+        private DBConnector _conn;
+        private String _table;
+        private String _query;
+        private BlockingQueue<Object[]> _queue;
+        private int _batchSize;
+        private int _numThreads;
+        private AtomicReference<Exception> _failure;
+
+        TableWriter(DBConnector conn, String table, String query,
+                    BlockingQueue<Object[]> queue, int batchSize,
+                    int numThreads, AtomicReference<Exception> failure)
+        {
+            _conn = conn;
+            _table = table;
+            _query = query;
+            _queue = queue;
+            _batchSize = batchSize;
+            _numThreads = numThreads;
+            _failure = failure;
+        }
+
+        /**Writes this table's rows, returning the number
+         * of rows sent to the database
+         *
+         * @return
+         * @throws InterruptedException
+         */
+        public Integer call() throws InterruptedException
+        {
+            int numRows = 0;
+            List<Object[]> batch = new ArrayList<>();
+            for(Object[] row = _queue.take(); row != END_OF_ROWS; row = _queue.take()){
+                if(_failure.get() != null)
+                    continue;
+                batch.add(row);
+                if(batch.size() >= getFlushSize()){
+                    numRows += flush(batch);
+                    batch.clear();
+                }
+            }
+            if(!batch.isEmpty() && _failure.get() == null)
+                numRows += flush(batch);
+            return numRows;
+        }
+
+        /**Returns the number of rows to accumulate before writing;
+         * during bulk loads, this is (at least) the connector's bulk
+         * transaction size, so each flush is a single large transaction
+         *
+         * @return
+         */
+        private int getFlushSize()
+        {
+            if(_conn.isBulkLoad())
+                return Math.max(_batchSize, _conn.getBulkTxnSize());
+            return _batchSize * _numThreads;
+        }
+
+        /**Writes the given batch of rows, recording any failure
+         *
+         * @param batch
+         * @return
+         */
+        private int flush(List<Object[]> batch)
+        {
+            try{
+                updateTable(_conn, _table, _query, batch, _batchSize, _numThreads);
+                return batch.size();
+            } catch(Exception ex) {
+                _failure.compareAndSet(null, ex);
+                return 0;
+            }
+        }
     }
 
     /**
@@ -0,0 +1,493 @@
+package core;
+
+import structures.*;
+import utilities.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**DocumentSnapshot reads and writes a compact binary corpus
+ * format, which can be loaded without re-parsing text files
+ * or querying a database. A snapshot consists of
+ *
+ *      header      magic, version, dictionary offset,
+ *                  index offset, string count, document count
+ *      records     one per Document, composed of fixed-width
+ *                  int fields (strings are dictionary IDs)
+ *      dictionary  length-prefixed UTF-8 strings
+ *      index       (document ID, record offset) pairs
+ *
+ * Snapshots are memory-mapped when opened, and Documents are
+ * only decoded when requested, through the same Document / Caption
+ * API that DocumentIterator uses to build database Documents.
+ *
+ * @author ccervantes
+ */
+public class DocumentSnapshot implements Iterable<Document>, AutoCloseable
+{
+    private static final int MAGIC = 0x49435453;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int NULL_STR = -1;
+
+    private RandomAccessFile _file;
+    private ByteBuffer _buffer;
+    private String[] _strings;
+    private String[] _docIDs;
+    private int[] _offsets;
+    private Map<String, Integer> _docIdxDict;
+
+    /**Opens the snapshot at the given filename, reading its
+     * dictionary and document index
+     *
+     * @param filename
+     * @throws IOException
+     */
+    private DocumentSnapshot(String filename) throws IOException
+    {
+        _file = new RandomAccessFile(filename, "r");
+        FileChannel channel = _file.getChannel();
+        if(channel.size() > Integer.MAX_VALUE){
+            _file.close();
+            throw new IOException("Snapshots larger than 2GB are not supported: " +
+                                  filename);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                                              0, channel.size());
+        _buffer = buffer;
+
+        if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION){
+            _file.close();
+            throw new IOException("Not a (version " + VERSION +
+                                  ") document snapshot: " + filename);
+        }
+        int dictOffset = (int)buffer.getLong(8);
+        int indexOffset = (int)buffer.getLong(16);
+        int numStrings = buffer.getInt(24);
+        int numDocs = buffer.getInt(28);
+
+        //Read the dictionary
+        ByteBuffer buf = buffer.duplicate();
+        buf.position(dictOffset);
+        _strings = new String[numStrings];
+        for(int i=0; i<numStrings; i++){
+            byte[] bytes = new byte[buf.getInt()];
+            buf.get(bytes);
+            _strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        //Read the document index
+        buf.position(indexOffset);
+        _docIDs = new String[numDocs];
+        _offsets = new int[numDocs];
+        _docIdxDict = new HashMap<>();
+        for(int i=0; i<numDocs; i++){
+            _docIDs[i] = _strings[buf.getInt()];
+            _offsets[i] = (int)buf.getLong();
+            _docIdxDict.put(_docIDs[i], i);
+        }
+    }
+
+    /**Opens the snapshot at the given filename
+     *
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static DocumentSnapshot open(String filename) throws IOException
+    {
+        return new DocumentSnapshot(filename);
+    }
+
+    /**Returns the number of Documents in this snapshot
+     *
+     * @return
+     */
+    public int size(){return _docIDs.length;}
+
+    /**Returns the IDs of this snapshot's Documents,
+     * in the order they were written
+     *
+     * @return
+     */
+    public List<String> getDocIDs(){return Collections.unmodifiableList(Arrays.asList(_docIDs));}
+
+    /**Returns whether this snapshot contains the given Document
+     *
+     * @param docID
+     * @return
+     */
+    public boolean contains(String docID){return _docIdxDict.containsKey(docID);}
+
+    /**Decodes and returns the Document with the given ID;
+     * null if there is none
+     *
+     * @param docID
+     * @return
+     */
+    public Document getDocument(String docID)
+    {
+        Integer docIdx = _docIdxDict.get(docID);
+        if(docIdx == null)
+            return null;
+        return readDocument(_offsets[docIdx]);
+    }
+
+    /**Decodes and returns all of this snapshot's Documents,
+     * in parallel
+     *
+     * @return
+     */
+    public Collection<Document> getDocumentSet()
+    {
+        return IntStream.range(0, _offsets.length).parallel()
+                .mapToObj(i -> readDocument(_offsets[i]))
+                .collect(Collectors.toList());
+    }
+
+    /**Returns an iterator that decodes this snapshot's
+     * Documents one at a time, in the order they were written
+     *
+     * @return
+     */
+    @Override
+    public Iterator<Document> iterator()
+    {
+        return new Iterator<Document>() {
+            private int _docIdx = 0;
+
+            @Override
+            public boolean hasNext(){return _docIdx < _offsets.length;}
+
+            @Override
+            public Document next()
+            {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                return readDocument(_offsets[_docIdx++]);
+            }
+        };
+    }
+
+    /**Closes the snapshot file; the mapping itself is
+     * released when this snapshot is garbage collected
+     */
+    @Override
+    public void close()
+    {
+        try{
+            _file.close();
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+        }
+    }
+
+    /**Decodes the Document whose record begins at the given offset;
+     * like DocumentIterator, boxes and chains are added before
+     * mentions, so mentions can be added to their chains
+     *
+     * @param offset
+     * @return
+     */
+    private Document readDocument(int offset)
+    {
+        ByteBuffer buf = _buffer.duplicate();
+        buf.position(offset);
+
+        String imgID = readStr(buf);
+        Document d = new Document(imgID);
+        d.height = buf.getInt();
+        d.width = buf.getInt();
+        d.crossVal = buf.getInt();
+        d.reviewed = buf.getInt() == 1;
+        d.imgURL = readStr(buf);
+        d.comments = readStr(buf);
+
+        //Bounding boxes
+        int numBoxes = buf.getInt();
+        Map<Integer, BoundingBox> boxDict = new HashMap<>();
+        for(int i=0; i<numBoxes; i++){
+            int boxID = buf.getInt();
+            boxDict.put(boxID, new BoundingBox(imgID, boxID, buf.getInt(),
+                    buf.getInt(), buf.getInt(), buf.getInt(), readStr(buf),
+                    readStr(buf)));
+        }
+
+        //Chains, and their associations with boxes
+        int numChains = buf.getInt();
+        Map<Integer, Set<String>> boxChainDict = new HashMap<>();
+        boolean hasNonvisChain = false;
+        for(int i=0; i<numChains; i++){
+            String chainID = readStr(buf);
+            hasNonvisChain |= chainID.equals("0");
+            int flags = buf.getInt();
+            Chain c = new Chain(imgID, chainID);
+            c.isScene = (flags & 1) != 0;
+            c.isOrigNobox = (flags & 2) != 0;
+            int numAssocBoxes = buf.getInt();
+            for(int j=0; j<numAssocBoxes; j++){
+                int boxID = buf.getInt();
+                if(!boxChainDict.containsKey(boxID))
+                    boxChainDict.put(boxID, new HashSet<>());
+                boxChainDict.get(boxID).add(chainID);
+            }
+            d.addChain(c);
+        }
+        for(Integer boxID : boxDict.keySet()){
+            Set<String> assocChains = new HashSet<>();
+            if(boxChainDict.containsKey(boxID))
+                assocChains.addAll(boxChainDict.get(boxID));
+            d.addBoundingBox(boxDict.get(boxID), assocChains);
+        }
+        if(!hasNonvisChain)
+            d.addChain(new Chain(imgID, "0"));
+
+        //Captions, with their tokens, chunks, mentions
+        //and dependencies
+        int numCaptions = buf.getInt();
+        for(int i=0; i<numCaptions; i++){
+            int captionIdx = buf.getInt();
+            int numTokens = buf.getInt();
+            int numChunks = buf.getInt();
+            int numMentions = buf.getInt();
+            int numDeps = buf.getInt();
+
+            Caption c = new Caption(imgID, captionIdx);
+            d.addCaption(c);
+            for(int j=0; j<numTokens; j++){
+                c.addToken(new Token(imgID, captionIdx, buf.getInt(),
+                        readStr(buf), readStr(buf), readStr(buf)));
+            }
+            for(int j=0; j<numChunks; j++){
+                int chunkIdx = buf.getInt();
+                String chunkType = readStr(buf);
+                c.addChunk(chunkIdx, chunkType, buf.getInt(), buf.getInt());
+            }
+            for(int j=0; j<numMentions; j++){
+                int mentionIdx = buf.getInt();
+                String lexType = readStr(buf);
+                String chainID = readStr(buf);
+                String cardStr = readStr(buf);
+                int startTokenIdx = buf.getInt();
+                int endTokenIdx = buf.getInt();
+                Cardinality card = null;
+                try{
+                    if(cardStr != null)
+                        card = new Cardinality(cardStr);
+                } catch(Exception ex) {
+                    Logger.log(ex);
+                }
+                Mention m = c.addMention(mentionIdx, lexType, chainID, card,
+                        startTokenIdx, endTokenIdx);
+                d.addMentionToChain(m);
+            }
+            if(numDeps > 0){
+                Set<String> depStrings = new HashSet<>();
+                for(int j=0; j<numDeps; j++){
+                    int govTokenIdx = buf.getInt();
+                    int depTokenIdx = buf.getInt();
+                    depStrings.add(govTokenIdx + "|" + readStr(buf) +
+                                   "|" + depTokenIdx);
+                }
+                c.setRootNode(depStrings);
+            }
+        }
+        return d;
+    }
+
+    /**Reads a string (as its dictionary ID) from the buffer
+     *
+     * @param buf
+     * @return
+     */
+    private String readStr(ByteBuffer buf)
+    {
+        int strID = buf.getInt();
+        return strID == NULL_STR ? null : _strings[strID];
+    }
+
+    /**Writes the given Documents to a snapshot at the given filename
+     *
+     * @param docs
+     * @param filename
+     * @throws IOException
+     */
+    public static void write(Iterable<Document> docs, String filename) throws IOException
+    {
+        Map<String, Integer> strDict = new HashMap<>();
+        List<String> strList = new ArrayList<>();
+        List<Integer> docStrIDs = new ArrayList<>();
+        List<Long> docOffsets = new ArrayList<>();
+
+        long dictOffset, indexOffset;
+        try(DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(filename)))){
+            //header (whose offsets are filled in at the end)
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(new byte[HEADER_SIZE - 8]);
+
+            int numDocs = 0;
+            for(Document d : docs){
+                docStrIDs.add(getStrID(d.getID(), strDict, strList));
+                docOffsets.add((long)out.size());
+                writeDocument(out, d, strDict, strList);
+                numDocs++;
+                Logger.logStatus("Wrote %d documents", numDocs);
+            }
+
+            dictOffset = out.size();
+            for(String s : strList){
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            indexOffset = out.size();
+            for(int i=0; i<docStrIDs.size(); i++){
+                out.writeInt(docStrIDs.get(i));
+                out.writeLong(docOffsets.get(i));
+            }
+
+            //DataOutputStream's counter saturates at Integer.MAX_VALUE
+            if(out.size() == Integer.MAX_VALUE)
+                throw new IOException("Snapshots larger than 2GB are not supported");
+        }
+
+        try(RandomAccessFile raf = new RandomAccessFile(filename, "rw")){
+            raf.seek(8);
+            raf.writeLong(dictOffset);
+            raf.writeLong(indexOffset);
+            raf.writeInt(strList.size());
+            raf.writeInt(docStrIDs.size());
+        }
+        Logger.log("Wrote %d documents (%d strings) to %s",
+                   docStrIDs.size(), strList.size(), filename);
+    }
+
+    /**Writes the record for the given Document
+     *
+     * @param out
+     * @param d
+     * @param strDict
+     * @param strList
+     * @throws IOException
+     */
+    private static void writeDocument(DataOutputStream out, Document d,
+                                      Map<String, Integer> strDict,
+                                      List<String> strList) throws IOException
+    {
+        out.writeInt(getStrID(d.getID(), strDict, strList));
+        out.writeInt(d.height);
+        out.writeInt(d.width);
+        out.writeInt(d.crossVal);
+        out.writeInt(d.reviewed ? 1 : 0);
+        out.writeInt(getStrID(d.imgURL, strDict, strList));
+        out.writeInt(getStrID(d.comments, strDict, strList));
+
+        Set<BoundingBox> boxSet = d.getBoundingBoxSet();
+        out.writeInt(boxSet.size());
+        for(BoundingBox b : boxSet){
+            out.writeInt(b.getIdx());
+            out.writeInt(b.getXMin());
+            out.writeInt(b.getYMin());
+            out.writeInt(b.getXMax());
+            out.writeInt(b.getYMax());
+            out.writeInt(getStrID(b.getCategory(), strDict, strList));
+            out.writeInt(getStrID(b.getSuperCategory(), strDict, strList));
+        }
+
+        Set<Chain> chainSet = d.getChainSet();
+        out.writeInt(chainSet.size());
+        for(Chain c : chainSet){
+            out.writeInt(getStrID(c.getID(), strDict, strList));
+            out.writeInt((c.isScene ? 1 : 0) | (c.isOrigNobox ? 2 : 0));
+            out.writeInt(c.getBoundingBoxSet().size());
+            for(BoundingBox b : c.getBoundingBoxSet())
+                out.writeInt(b.getIdx());
+        }
+
+        out.writeInt(d.getCaptionList().size());
+        for(Caption c : d.getCaptionList()){
+            List<int[]> deps = new ArrayList<>();
+            List<String> rels = new ArrayList<>();
+            DependencyNode root = c.getRootNode();
+            if(root != null){
+                for(DependencyNode node : root.getAllNodesInTree()){
+                    int govTokenIdx = -1;
+                    String rel = "ROOT";
+                    if(node.getGovernor() != null){
+                        govTokenIdx = node.getGovernor().getToken().getIdx();
+                        rel = node.getRelationToGovernor();
+                    }
+                    deps.add(new int[]{govTokenIdx, node.getToken().getIdx()});
+                    rels.add(rel);
+                }
+            }
+
+            out.writeInt(c.getIdx());
+            out.writeInt(c.getTokenList().size());
+            out.writeInt(c.getChunkList().size());
+            out.writeInt(c.getMentionList().size());
+            out.writeInt(deps.size());
+            for(Token t : c.getTokenList()){
+                out.writeInt(t.getIdx());
+                out.writeInt(getStrID(t.toString(), strDict, strList));
+                out.writeInt(getStrID(t.getLemma(), strDict, strList));
+                out.writeInt(getStrID(t.getPosTag(), strDict, strList));
+            }
+            for(Chunk ch : c.getChunkList()){
+                int[] tokenRange = ch.getTokenRange();
+                out.writeInt(ch.getIdx());
+                out.writeInt(getStrID(ch.getChunkType(), strDict, strList));
+                out.writeInt(tokenRange[0]);
+                out.writeInt(tokenRange[1]);
+            }
+            for(Mention m : c.getMentionList()){
+                int[] tokenRange = m.getTokenRange();
+                String cardStr = null;
+                if(m.getCardinality() != null)
+                    cardStr = m.getCardinality().toString();
+                out.writeInt(m.getIdx());
+                out.writeInt(getStrID(m.getLexicalType(), strDict, strList));
+                out.writeInt(getStrID(m.getChainID(), strDict, strList));
+                out.writeInt(getStrID(cardStr, strDict, strList));
+                out.writeInt(tokenRange[0]);
+                out.writeInt(tokenRange[1]);
+            }
+            for(int i=0; i<deps.size(); i++){
+                out.writeInt(deps.get(i)[0]);
+                out.writeInt(deps.get(i)[1]);
+                out.writeInt(getStrID(rels.get(i), strDict, strList));
+            }
+        }
+    }
+
+    /**Returns the dictionary ID of the given string,
+     * adding it to the dictionary if necessary
+     *
+     * @param s
+     * @param strDict
+     * @param strList
+     * @return
+     */
+    private static int getStrID(String s, Map<String, Integer> strDict,
+                                List<String> strList)
+    {
+        if(s == null)
+            return NULL_STR;
+        Integer strID = strDict.get(s);
+        if(strID == null){
+            strID = strList.size();
+            strDict.put(s, strID);
+            strList.add(s);
+        }
+        return strID;
+    }
+}
@@ -0,0 +1,33 @@
+package core;
+
+/**A LoadProfile specifies which parts of a Document are read
+ * up front when loading from a database; profiles are cumulative,
+ * such that each includes the parts of those before it
+ *
+ *      TOKENS          image, caption, token, and chunk data
+ *      MENTIONS        + chains and mentions
+ *      BOXES           + bounding boxes
+ *      DEPENDENCIES    + dependency trees (everything)
+ *
+ * Bounding boxes and dependency trees that aren't loaded up front
+ * are fetched on first access (via Document.getBoundingBoxSet() and
+ * Caption.getRootNode(), respectively); under TOKENS, fetching boxes
+ * also fetches the chains they're associated with
+ *
+ * @author ccervantes
+ */
+public enum LoadProfile
+{
+    TOKENS, MENTIONS, BOXES, DEPENDENCIES;
+
+    /**Returns whether this profile includes the
+     * parts loaded by the given profile
+     *
+     * @param profile
+     * @return
+     */
+    public boolean includes(LoadProfile profile)
+    {
+        return ordinal() >= profile.ordinal();
+    }
+}
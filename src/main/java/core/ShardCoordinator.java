@@ -0,0 +1,190 @@
+package core;
+
+import structures.Document;
+import utilities.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.StreamSupport;
+
+/**ShardCoordinator runs a job over a corpus as N local worker
+ * processes, each of which handles one shard of the corpus
+ * (see DocumentLoader.getDocumentShard()), and merges their
+ * outputs once all workers have finished.
+ *
+ * Workers are launched as new JVMs running the given main class
+ * on this JVM's classpath, with the following placeholders in
+ * their arguments replaced, per worker
+ *
+ *      {shard}         the worker's shard index
+ *      {numShards}     the number of shards
+ *      {output}        the worker's output file
+ *
+ * where each worker writes to [output].shard[k] (and logs to
+ * [output].shard[k].log). By default, outputs are merged by
+ * concatenating them in shard order; snapshot outputs can be
+ * merged with mergeSnapshots().
+ *
+ * @author ccervantes
+ */
+public class ShardCoordinator
+{
+    private String _mainClass;
+    private int _numShards;
+    private String _classpath;
+    private List<String> _jvmArgs;
+    private Merger _merger;
+
+    /**A Merger combines the workers' output files
+     * (in shard order) into a single output file
+     */
+    public interface Merger
+    {
+        void merge(List<String> shardFiles, String outputFile) throws IOException;
+    }
+
+    /**Creates a new ShardCoordinator, which runs numShards
+     * workers of the given main class
+     *
+     * @param mainClass
+     * @param numShards
+     */
+    public ShardCoordinator(String mainClass, int numShards)
+    {
+        if(numShards < 1)
+            throw new IllegalArgumentException("Must have at least one shard");
+        _mainClass = mainClass;
+        _numShards = numShards;
+        _classpath = System.getProperty("java.class.path");
+        _jvmArgs = new ArrayList<>();
+        _merger = ShardCoordinator::concatFiles;
+    }
+
+    /**Sets the classpath for worker JVMs (this JVM's, by default)
+     *
+     * @param classpath
+     */
+    public void setClasspath(String classpath){_classpath = classpath;}
+
+    /**Sets the arguments (ie. -Xmx4g) for worker JVMs
+     *
+     * @param jvmArgs
+     */
+    public void setJvmArgs(List<String> jvmArgs){_jvmArgs = new ArrayList<>(jvmArgs);}
+
+    /**Sets how the workers' outputs are merged
+     *
+     * @param merger
+     */
+    public void setMerger(Merger merger){_merger = merger;}
+
+    /**Launches the workers with the given arguments (see class
+     * placeholders), waits for all of them to finish, and merges
+     * their outputs into outputFile; the intermediate shard files
+     * are removed after a successful merge
+     *
+     * @param args
+     * @param outputFile
+     * @throws IOException          If a worker couldn't be launched,
+     *                              failed, or if the merge failed
+     * @throws InterruptedException
+     */
+    public void run(List<String> args, String outputFile)
+            throws IOException, InterruptedException
+    {
+        String javaBin = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+        List<String> shardFiles = new ArrayList<>();
+        List<Process> workers = new ArrayList<>();
+        try{
+            for(int shardIdx=0; shardIdx<_numShards; shardIdx++){
+                String shardFile = outputFile + ".shard" + shardIdx;
+                shardFiles.add(shardFile);
+
+                List<String> command = new ArrayList<>();
+                command.add(javaBin);
+                command.addAll(_jvmArgs);
+                command.add("-cp");
+                command.add(_classpath);
+                command.add(_mainClass);
+                for(String arg : args)
+                    command.add(arg.replace("{shard}", String.valueOf(shardIdx))
+                                   .replace("{numShards}", String.valueOf(_numShards))
+                                   .replace("{output}", shardFile));
+
+                ProcessBuilder pb = new ProcessBuilder(command);
+                pb.redirectErrorStream(true);
+                pb.redirectOutput(new File(shardFile + ".log"));
+                workers.add(pb.start());
+            }
+            Logger.log("Launched %d workers of %s", _numShards, _mainClass);
+
+            //Wait on all workers, so a failure in one
+            //doesn't leave the others running unobserved
+            List<Integer> failedShards = new ArrayList<>();
+            for(int shardIdx=0; shardIdx<workers.size(); shardIdx++){
+                int exitCode = workers.get(shardIdx).waitFor();
+                if(exitCode != 0){
+                    Logger.log("Shard %d failed (exit code %d); see %s.log",
+                               shardIdx, exitCode, shardFiles.get(shardIdx));
+                    failedShards.add(shardIdx);
+                }
+            }
+            if(!failedShards.isEmpty())
+                throw new IOException("Shards " + failedShards + " failed");
+        } finally {
+            for(Process p : workers)
+                if(p.isAlive())
+                    p.destroyForcibly();
+        }
+
+        Logger.log("Merging %d shards into %s", _numShards, outputFile);
+        _merger.merge(shardFiles, outputFile);
+        for(String shardFile : shardFiles)
+            Files.deleteIfExists(Paths.get(shardFile));
+    }
+
+    /**Merges the given files by concatenating them, in order
+     *
+     * @param shardFiles
+     * @param outputFile
+     * @throws IOException
+     */
+    public static void concatFiles(List<String> shardFiles, String outputFile)
+            throws IOException
+    {
+        try(OutputStream out = Files.newOutputStream(Paths.get(outputFile),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+            for(String shardFile : shardFiles)
+                Files.copy(Paths.get(shardFile), out);
+        }
+    }
+
+    /**Merges the given DocumentSnapshots into a single snapshot;
+     * since shards are disjoint, each Document appears once
+     *
+     * @param shardFiles
+     * @param outputFile
+     * @throws IOException
+     */
+    public static void mergeSnapshots(List<String> shardFiles, String outputFile)
+            throws IOException
+    {
+        List<DocumentSnapshot> snapshots = new ArrayList<>();
+        try{
+            for(String shardFile : shardFiles)
+                snapshots.add(DocumentSnapshot.open(shardFile));
+
+            Iterable<Document> docs = () -> snapshots.stream()
+                    .flatMap(snap -> StreamSupport.stream(snap.spliterator(), false))
+                    .iterator();
+            DocumentSnapshot.write(docs, outputFile);
+        } finally {
+            for(DocumentSnapshot snap : snapshots)
+                snap.close();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package nlptools;
+
+import utilities.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**EmbeddingFile reads and writes a binary embedding format,
+ * which is memory-mapped when opened, so embeddings are usable
+ * without parsing (and processes on the same host share the
+ * file's pages). A file consists of (little-endian)
+ *
+ *      header      magic, version, dimension, word count,
+ *                  table size, (padding), word bytes length
+ *      rows        word count x dimension unit-normalized floats
+ *      norms       word count floats
+ *      table       open-addressing hash table of (row + 1) ints,
+ *                  keyed by the words' String.hashCode()
+ *      offsets     word count + 1 ints into the word bytes
+ *      words       UTF-8 word bytes
+ *
+ * Rows are mapped in chunks of at most MAX_CHUNK_BYTES, so files
+ * may exceed 2GB; each other section must fit in one mapping.
+ *
+ * @author ccervantes
+ */
+public class EmbeddingFile
+{
+    private static final int MAGIC = 0x57325642;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+    private static final int MAX_NUM_WORDS = 1 << 27;   //keeps the table under 2GB
+
+    /**Converts the gzipped, tab-separated word2vec text file
+     * at w2vPath to an embedding file at filename
+     *
+     * @param w2vPath
+     * @param filename
+     * @throws IOException
+     */
+    public static void convert(String w2vPath, String filename) throws IOException
+    {
+        convert(w2vPath, filename, null);
+    }
+
+    /**Converts the vectors for the given words (or all words, if
+     * wordSet is null) in the gzipped, tab-separated word2vec text
+     * file at w2vPath to an embedding file at filename; since vectors
+     * are read onto the heap before they're written, restricting
+     * large files to the vocabulary in use saves both
+     *
+     * @param w2vPath
+     * @param filename
+     * @param wordSet
+     * @throws IOException
+     */
+    public static void convert(String w2vPath, String filename, Collection<String> wordSet)
+            throws IOException
+    {
+        if(wordSet != null && wordSet.size() > MAX_NUM_WORDS)
+            throw new IllegalArgumentException("Embedding files hold at most " +
+                    MAX_NUM_WORDS + " words; found " + wordSet.size());
+        EmbeddingMatrix matrix = Word2VecUtil.readTextFile(w2vPath, wordSet,
+                Runtime.getRuntime().availableProcessors());
+        if(matrix == null)
+            throw new IOException("No vectors found in " + w2vPath);
+        Logger.log("Read %d %d-dimensional vectors", matrix.size(), matrix.getDim());
+        write(matrix, filename);
+    }
+
+    /**Returns the size, in bytes, of an embedding file
+     * with the given dimensions
+     *
+     * @param dim
+     * @param numWords
+     * @param tableSize
+     * @param wordBytesLength
+     * @return
+     */
+    private static long getFileSize(int dim, int numWords, int tableSize, long wordBytesLength)
+    {
+        return HEADER_SIZE + 4L * numWords * dim + 4L * numWords +
+               4L * tableSize + 4L * (numWords + 1) + wordBytesLength;
+    }
+
+    /**Writes the given matrix to an embedding file at filename
+     *
+     * @param matrix
+     * @param filename
+     * @throws IOException
+     */
+    public static void write(EmbeddingMatrix matrix, String filename) throws IOException
+    {
+        int dim = matrix.getDim(), numWords = matrix.size();
+        if(numWords > MAX_NUM_WORDS)
+            throw new IOException("Embedding files hold at most " + MAX_NUM_WORDS +
+                    " words; found " + numWords);
+
+        //Encode the words and build the hash table (at most half full)
+        byte[][] wordBytes = new byte[numWords][];
+        long wordBytesLength = 0;
+        for(int row=0; row<numWords; row++){
+            wordBytes[row] = matrix.getWord(row).getBytes(StandardCharsets.UTF_8);
+            wordBytesLength += wordBytes[row].length;
+        }
+        if(wordBytesLength > Integer.MAX_VALUE)
+            throw new IOException("Embedding files hold at most 2GB of words; found " +
+                    wordBytesLength + " bytes");
+        int tableSize = Integer.highestOneBit(Math.max(1, 2 * numWords - 1)) << 1;
+        int[] table = new int[tableSize];
+        for(int row=0; row<numWords; row++){
+            int slot = matrix.getWord(row).hashCode() & (tableSize - 1);
+            while(table[slot] != 0)
+                slot = (slot + 1) & (tableSize - 1);
+            table[slot] = row + 1;
+        }
+        Logger.log("Writing %d-byte embedding file %s",
+                   getFileSize(dim, numWords, tableSize, wordBytesLength), filename);
+
+        try(FileOutputStream out = new FileOutputStream(filename)){
+            FileChannel channel = out.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            buf.putInt(MAGIC).putInt(VERSION).putInt(dim).putInt(numWords);
+            buf.putInt(tableSize).putInt(0).putLong(wordBytesLength);
+
+            for(int row=0; row<numWords; row++){
+                for(int i=0; i<dim; i++){
+                    flushIfFull(channel, buf, 4);
+                    buf.putFloat(matrix.getUnitValue(row, i));
+                }
+            }
+            for(int row=0; row<numWords; row++){
+                flushIfFull(channel, buf, 4);
+                buf.putFloat(matrix.getNorm(row));
+            }
+            for(int slot : table){
+                flushIfFull(channel, buf, 4);
+                buf.putInt(slot);
+            }
+            int offset = 0;
+            for(int row=0; row<=numWords; row++){
+                flushIfFull(channel, buf, 4);
+                buf.putInt(offset);
+                if(row < numWords)
+                    offset += wordBytes[row].length;
+            }
+            for(byte[] bytes : wordBytes){
+                for(byte b : bytes){
+                    flushIfFull(channel, buf, 1);
+                    buf.put(b);
+                }
+            }
+            flush(channel, buf);
+        }
+    }
+
+    /**Memory-maps the embedding file at filename, returning a
+     * read-only matrix over its rows; only the norms are copied
+     * onto the heap
+     *
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static EmbeddingMatrix open(String filename) throws IOException
+    {
+        try(RandomAccessFile file = new RandomAccessFile(filename, "r")){
+            FileChannel channel = file.getChannel();
+            if(channel.size() < HEADER_SIZE)
+                throw new IOException("Not an embedding file: " + filename);
+
+            //mappings remain valid after the file is closed
+            ByteBuffer header = map(channel, 0, HEADER_SIZE);
+            if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IOException("Not a (version " + VERSION + ") embedding file: " + filename);
+            int dim = header.getInt(8);
+            int numWords = header.getInt(12);
+            int tableSize = header.getInt(16);
+            long wordBytesLength = header.getLong(24);
+            if(channel.size() != getFileSize(dim, numWords, tableSize, wordBytesLength))
+                throw new IOException("Truncated or corrupt embedding file: " + filename);
+
+            long rowsOffset = HEADER_SIZE;
+            long normsOffset = rowsOffset + 4L * numWords * dim;
+            long tableOffset = normsOffset + 4L * numWords;
+            long offsetsOffset = tableOffset + 4L * tableSize;
+            long wordsOffset = offsetsOffset + 4L * (numWords + 1);
+
+            int rowsPerChunk = Math.max(1, MAX_CHUNK_BYTES / (4 * dim));
+            FloatBuffer[] rowChunks = new FloatBuffer[(numWords + rowsPerChunk - 1) / rowsPerChunk];
+            for(int c=0; c<rowChunks.length; c++){
+                int numRows = Math.min(rowsPerChunk, numWords - c * rowsPerChunk);
+                rowChunks[c] = map(channel, rowsOffset + 4L * c * rowsPerChunk * dim,
+                        4L * numRows * dim).asFloatBuffer();
+            }
+
+            float[] norms = new float[numWords];
+            map(channel, normsOffset, 4L * numWords).asFloatBuffer().get(norms);
+
+            return new EmbeddingMatrix(dim, numWords, rowChunks, rowsPerChunk, norms,
+                    new MappedIndex(map(channel, tableOffset, 4L * tableSize), tableSize,
+                            map(channel, offsetsOffset, 4L * (numWords + 1)),
+                            map(channel, wordsOffset, wordBytesLength)));
+        }
+    }
+
+    /**Returns a little-endian, read-only mapping of the
+     * channel's size bytes, starting at position
+     *
+     * @param channel
+     * @param position
+     * @param size
+     * @return
+     * @throws IOException
+     */
+    private static ByteBuffer map(FileChannel channel, long position, long size)
+            throws IOException
+    {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        return mapped.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**Writes buf to the channel if it has fewer than
+     * numBytes remaining
+     *
+     * @param channel
+     * @param buf
+     * @param numBytes
+     * @throws IOException
+     */
+    private static void flushIfFull(FileChannel channel, ByteBuffer buf, int numBytes)
+            throws IOException
+    {
+        if(buf.remaining() < numBytes)
+            flush(channel, buf);
+    }
+
+    /**Writes buf's contents to the channel and clears it
+     *
+     * @param channel
+     * @param buf
+     * @throws IOException
+     */
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException
+    {
+        buf.flip();
+        while(buf.hasRemaining())
+            channel.write(buf);
+        buf.clear();
+    }
+
+    /**A MappedIndex resolves words through an embedding file's
+     * hash table, comparing the query against the stored UTF-8 bytes
+     * (so no words are decoded to look one up)
+     */
+    private static class MappedIndex implements EmbeddingMatrix.WordIndex
+    {
+        private ByteBuffer _table;
+        private int _mask;
+        private ByteBuffer _offsets;
+        private ByteBuffer _words;
+
+        MappedIndex(ByteBuffer table, int tableSize, ByteBuffer offsets, ByteBuffer words)
+        {
+            _table = table;
+            _mask = tableSize - 1;
+            _offsets = offsets;
+            _words = words;
+        }
+
+        @Override
+        public int getRow(String word)
+        {
+            for(int slot = word.hashCode() & _mask; ; slot = (slot + 1) & _mask){
+                int entry = _table.getInt(4 * slot);
+                if(entry == 0)
+                    return -1;
+                if(wordEquals(entry - 1, word))
+                    return entry - 1;
+            }
+        }
+
+        @Override
+        public String getWord(int row)
+        {
+            int start = _offsets.getInt(4 * row), end = _offsets.getInt(4 * (row + 1));
+            byte[] bytes = new byte[end - start];
+            for(int i=0; i<bytes.length; i++)
+                bytes[i] = _words.get(start + i);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**Returns whether the given row's word is equal to word;
+         * ASCII words are compared in place, others are encoded
+         *
+         * @param row
+         * @param word
+         * @return
+         */
+        private boolean wordEquals(int row, String word)
+        {
+            int start = _offsets.getInt(4 * row), end = _offsets.getInt(4 * (row + 1));
+            if(end - start == word.length()){
+                boolean ascii = true;
+                for(int i=0; i<word.length() && ascii; i++){
+                    byte b = _words.get(start + i);
+                    char ch = word.charAt(i);
+                    if(b < 0 || ch >= 0x80)
+                        ascii = false;
+                    else if(b != ch)
+                        return false;
+                }
+                if(ascii)
+                    return true;
+            }
+            byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+            if(bytes.length != end - start)
+                return false;
+            for(int i=0; i<bytes.length; i++)
+                if(bytes[i] != _words.get(start + i))
+                    return false;
+            return true;
+        }
+    }
+}
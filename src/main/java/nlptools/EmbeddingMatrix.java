@@ -0,0 +1,476 @@
+package nlptools;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**EmbeddingMatrix stores word embeddings as rows of contiguous
+ * float buffers, indexed by word. Rows are stored
+ * unit-normalized (alongside their original norms), such that
+ * cosine similarity is a dot product and neither similarities
+ * nor vector copies allocate. Matrices are either built on the
+ * heap (via add()) or opened, read-only, from a memory-mapped
+ * EmbeddingFile.
+ *
+ * @author ccervantes
+ */
+public class EmbeddingMatrix
+{
+    private static final int ROW_BLOCK_SIZE = 256;
+    private static final int QUERY_GROUP_SIZE = 32;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private int _dim;
+    private int _numRows;
+    private float[] _rowArr;            //null for mapped matrices
+    private FloatBuffer[] _rowChunks;   //each holding _rowsPerChunk rows
+    private int _rowsPerChunk;
+    private float[] _norms;
+    private WordIndex _index;
+
+    /**A WordIndex maps words to their rows (and back)
+     */
+    interface WordIndex
+    {
+        int getRow(String word);
+        String getWord(int row);
+    }
+
+    /**Creates a new, empty EmbeddingMatrix of dim-dimensional
+     * vectors, with room for initialCapacity rows before
+     * the matrix grows
+     *
+     * @param dim
+     * @param initialCapacity
+     */
+    public EmbeddingMatrix(int dim, int initialCapacity)
+    {
+        if(dim < 1)
+            throw new IllegalArgumentException("Embeddings must have at least one dimension");
+        _dim = dim;
+        _numRows = 0;
+        initialCapacity = Math.max(1, Math.min(initialCapacity, getMaxHeapRows()));
+        _rowArr = new float[dim * initialCapacity];
+        _rowChunks = new FloatBuffer[]{FloatBuffer.wrap(_rowArr)};
+        _rowsPerChunk = Integer.MAX_VALUE;
+        _norms = new float[initialCapacity];
+        _index = new DictIndex(initialCapacity);
+    }
+
+    /**Creates a read-only EmbeddingMatrix over the given
+     * (unit-normalized) rows, split into chunks of rowsPerChunk
+     * rows each (so no one buffer exceeds 2GB); used by EmbeddingFile
+     *
+     * @param dim
+     * @param numRows
+     * @param rowChunks
+     * @param rowsPerChunk
+     * @param norms
+     * @param index
+     */
+    EmbeddingMatrix(int dim, int numRows, FloatBuffer[] rowChunks, int rowsPerChunk,
+                    float[] norms, WordIndex index)
+    {
+        _dim = dim;
+        _numRows = numRows;
+        _rowArr = null;
+        _rowChunks = rowChunks;
+        _rowsPerChunk = rowsPerChunk;
+        _norms = norms;
+        _index = index;
+    }
+
+    /**Adds the given word's vector (read from vec[offset, offset+dim))
+     * as a new row, or replaces the word's row if it's already present;
+     * returns the word's row
+     *
+     * @param word
+     * @param vec
+     * @param offset
+     * @return
+     */
+    public int add(String word, float[] vec, int offset)
+    {
+        if(_rowArr == null)
+            throw new UnsupportedOperationException("Mapped embedding matrices are read-only");
+
+        DictIndex dictIndex = (DictIndex)_index;
+        int row = dictIndex.getRow(word);
+        if(row < 0){
+            if(_numRows == _norms.length){
+                //heap rows share one array, which caps their number
+                int capacity = (int)Math.min(2L * _norms.length, getMaxHeapRows());
+                if(capacity == _numRows)
+                    throw new IllegalStateException("Heap embedding matrices hold at most " +
+                            capacity + " " + _dim + "-dimensional rows");
+                _rowArr = Arrays.copyOf(_rowArr, _dim * capacity);
+                _rowChunks[0] = FloatBuffer.wrap(_rowArr);
+                _norms = Arrays.copyOf(_norms, capacity);
+            }
+            row = _numRows++;
+            dictIndex.put(word, row);
+        }
+
+        double sumSq = 0.0;
+        for(int i=0; i<_dim; i++)
+            sumSq += (double)vec[offset + i] * vec[offset + i];
+        double norm = Math.sqrt(sumSq);
+        _norms[row] = (float)norm;
+
+        //zero vectors stay zero (and have zero similarity to everything)
+        int start = row * _dim;
+        for(int i=0; i<_dim; i++)
+            _rowArr[start + i] = norm > 0 ? (float)(vec[offset + i] / norm) : 0f;
+        return row;
+    }
+
+    /**Releases any unused capacity
+     */
+    public void trim()
+    {
+        if(_rowArr == null)
+            return;
+        _rowArr = Arrays.copyOf(_rowArr, _dim * _numRows);
+        _rowChunks[0] = FloatBuffer.wrap(_rowArr);
+        _norms = Arrays.copyOf(_norms, _numRows);
+    }
+
+    /**Returns the most rows a heap matrix can hold
+     *
+     * @return
+     */
+    private int getMaxHeapRows()
+    {
+        return MAX_ARRAY_SIZE / _dim;
+    }
+
+    /**Returns the buffer holding the given row
+     *
+     * @param row
+     * @return
+     */
+    private FloatBuffer getChunk(int row)
+    {
+        return _rowChunks[row / _rowsPerChunk];
+    }
+
+    /**Returns the given row's starting index in its buffer
+     *
+     * @param row
+     * @return
+     */
+    private int getChunkStart(int row)
+    {
+        return (row % _rowsPerChunk) * _dim;
+    }
+
+    /* Getters */
+    public int getDim(){return _dim;}
+    public int size(){return _numRows;}
+    public String getWord(int row){return _index.getWord(row);}
+    public float getNorm(int row){return _norms[row];}
+    public boolean contains(String word){return getRow(word) >= 0;}
+
+    /**Returns the given word's row; -1 if the word
+     * has no embedding
+     *
+     * @param word
+     * @return
+     */
+    public int getRow(String word)
+    {
+        return word == null ? -1 : _index.getRow(word);
+    }
+
+    /**Returns the given row's (unit-normalized) value
+     * at the given dimension
+     *
+     * @param row
+     * @param i
+     * @return
+     */
+    public float getUnitValue(int row, int i)
+    {
+        return getChunk(row).get(getChunkStart(row) + i);
+    }
+
+    /**Returns the cosine similarity between the given rows;
+     * 0 if either row is -1
+     *
+     * @param row_1
+     * @param row_2
+     * @return
+     */
+    public double getSimilarity(int row_1, int row_2)
+    {
+        if(row_1 < 0 || row_2 < 0)
+            return 0.0;
+        FloatBuffer rows_1 = getChunk(row_1), rows_2 = getChunk(row_2);
+        int start_1 = getChunkStart(row_1), start_2 = getChunkStart(row_2);
+        double dot = 0.0;
+        for(int i=0; i<_dim; i++)
+            dot += rows_1.get(start_1 + i) * rows_2.get(start_2 + i);
+        return dot;
+    }
+
+    /**Returns the cosine similarity between the given words'
+     * embeddings; 0 if either word has no embedding
+     *
+     * @param word_1
+     * @param word_2
+     * @return
+     */
+    public double getSimilarity(String word_1, String word_2)
+    {
+        return getSimilarity(getRow(word_1), getRow(word_2));
+    }
+
+    /**Returns the dot product of query[0, dim) with the
+     * given (unit-normalized) row
+     *
+     * @param query
+     * @param row
+     * @return
+     */
+    float dot(float[] query, int row)
+    {
+        //four accumulators break the add dependency chain,
+        //which the JIT won't reorder for floats
+        float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+        int i = 0;
+        if(_rowArr != null){
+            int start = row * _dim;
+            for(; i + 3 < _dim; i += 4){
+                s0 += query[i] * _rowArr[start + i];
+                s1 += query[i+1] * _rowArr[start + i + 1];
+                s2 += query[i+2] * _rowArr[start + i + 2];
+                s3 += query[i+3] * _rowArr[start + i + 3];
+            }
+            for(; i < _dim; i++)
+                s0 += query[i] * _rowArr[start + i];
+        } else {
+            FloatBuffer rows = getChunk(row);
+            int start = getChunkStart(row);
+            for(; i + 3 < _dim; i += 4){
+                s0 += query[i] * rows.get(start + i);
+                s1 += query[i+1] * rows.get(start + i + 1);
+                s2 += query[i+2] * rows.get(start + i + 2);
+                s3 += query[i+3] * rows.get(start + i + 3);
+            }
+            for(; i < _dim; i++)
+                s0 += query[i] * rows.get(start + i);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**Returns the rows of the k embeddings most similar to the
+     * given row (excluding the row itself), in order of decreasing
+     * cosine similarity; empty if row is -1. Search is exact
+     * (see getNearestRows(int[], int, int))
+     *
+     * @param row
+     * @param k
+     * @return
+     */
+    public int[] getNearestRows(int row, int k)
+    {
+        int[][] neighbors = new int[1][];
+        searchGroup(new int[]{row}, 0, 1, k, neighbors);
+        return neighbors[0];
+    }
+
+    /**Returns the rows of the k embeddings most similar to the
+     * given query vector (which needn't be normalized), in order
+     * of decreasing cosine similarity. Search is exact
+     *
+     * @param query
+     * @param k
+     * @return
+     */
+    public int[] getNearestRows(float[] query, int k)
+    {
+        if(query.length != _dim)
+            throw new IllegalArgumentException("Expected a " + _dim +
+                    "-dimensional query; found " + query.length);
+        TopK topK = new TopK(k);
+        for(int row=0; row<_numRows; row++){
+            float score = dot(query, row);
+            if(score > topK.getThreshold())
+                topK.offer(row, score);
+        }
+        return topK.drainRows();
+    }
+
+    /**Returns, for each of the given rows, the rows of the k embeddings
+     * most similar to it (excluding itself), in order of decreasing cosine
+     * similarity; rows of -1 have no neighbors. Search is exact: the matrix
+     * is scanned in blocks of rows, each of which is scored against a group
+     * of queries while it's in cache, and query groups are searched in
+     * parallel with numThreads threads. Suitable for vocabularies of up
+     * to a few hundred thousand words; see LshIndex for larger ones.
+     *
+     * @param rows
+     * @param k
+     * @param numThreads
+     * @return
+     */
+    public int[][] getNearestRows(int[] rows, int k, int numThreads)
+    {
+        int[][] neighbors = new int[rows.length][];
+        int numGroups = (rows.length + QUERY_GROUP_SIZE - 1) / QUERY_GROUP_SIZE;
+        return runOnPool(numThreads, () -> {
+            IntStream.range(0, numGroups).parallel().forEach(g ->
+                    searchGroup(rows, g * QUERY_GROUP_SIZE,
+                            Math.min(rows.length, (g + 1) * QUERY_GROUP_SIZE), k, neighbors));
+            return neighbors;
+        });
+    }
+
+    /**Runs the given (parallel stream) task on a fork-join pool of
+     * numThreads threads, returning its result; a failed task's
+     * exception is rethrown (wrapped, if checked), and interruptions
+     * restore the thread's interrupt flag
+     *
+     * @param numThreads
+     * @param task
+     * @param <T>
+     * @return
+     */
+    static <T> T runOnPool(int numThreads, Callable<T> task)
+    {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, numThreads));
+        try{
+            return pool.submit(task).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during nearest neighbor search", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if(cause instanceof Error)
+                throw (Error)cause;
+            throw new RuntimeException("Nearest neighbor search failed", cause);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**Searches for the neighbors of rows[start, end), storing
+     * them in the respective neighbors entries
+     *
+     * @param rows
+     * @param start
+     * @param end
+     * @param k
+     * @param neighbors
+     */
+    private void searchGroup(int[] rows, int start, int end, int k, int[][] neighbors)
+    {
+        int numQueries = end - start;
+        float[][] queries = new float[numQueries][];
+        TopK[] topKs = new TopK[numQueries];
+        for(int q=0; q<numQueries; q++){
+            if(rows[start + q] < 0)
+                continue;
+            queries[q] = new float[_dim];
+            for(int i=0; i<_dim; i++)
+                queries[q][i] = getUnitValue(rows[start + q], i);
+            topKs[q] = new TopK(k);
+        }
+
+        for(int blockStart=0; blockStart<_numRows; blockStart+=ROW_BLOCK_SIZE){
+            int blockEnd = Math.min(_numRows, blockStart + ROW_BLOCK_SIZE);
+            for(int q=0; q<numQueries; q++){
+                if(queries[q] == null)
+                    continue;
+                int self = rows[start + q];
+                for(int row=blockStart; row<blockEnd; row++){
+                    float score = dot(queries[q], row);
+                    if(score > topKs[q].getThreshold() && row != self)
+                        topKs[q].offer(row, score);
+                }
+            }
+        }
+
+        for(int q=0; q<numQueries; q++)
+            neighbors[start + q] = topKs[q] == null ? new int[0] : topKs[q].drainRows();
+    }
+
+    /**Writes the given row's (original, unnormalized) vector
+     * into dest[offset, offset+dim); writes zeros if row is -1
+     *
+     * @param row
+     * @param dest
+     * @param offset
+     */
+    public void getVector(int row, float[] dest, int offset)
+    {
+        if(row < 0){
+            Arrays.fill(dest, offset, offset + _dim, 0f);
+            return;
+        }
+        FloatBuffer rows = getChunk(row);
+        int start = getChunkStart(row);
+        float norm = _norms[row];
+        for(int i=0; i<_dim; i++)
+            dest[offset + i] = rows.get(start + i) * norm;
+    }
+
+    /**Writes the given row's (original, unnormalized) vector
+     * into dest[offset, offset+dim); writes zeros if row is -1
+     *
+     * @param row
+     * @param dest
+     * @param offset
+     */
+    public void getVector(int row, double[] dest, int offset)
+    {
+        if(row < 0){
+            Arrays.fill(dest, offset, offset + _dim, 0.0);
+            return;
+        }
+        FloatBuffer rows = getChunk(row);
+        int start = getChunkStart(row);
+        float norm = _norms[row];
+        for(int i=0; i<_dim; i++)
+            dest[offset + i] = rows.get(start + i) * norm;
+    }
+
+    /**A DictIndex is the WordIndex of heap matrices
+     */
+    private static class DictIndex implements WordIndex
+    {
+        private Map<String, Integer> _rowDict;
+        private String[] _words;
+
+        DictIndex(int initialCapacity)
+        {
+            _rowDict = new HashMap<>(2 * initialCapacity);
+            _words = new String[initialCapacity];
+        }
+
+        void put(String word, int row)
+        {
+            if(row >= _words.length)
+                _words = Arrays.copyOf(_words, Math.max(2 * _words.length, row + 1));
+            _words[row] = word;
+            _rowDict.put(word, row);
+        }
+
+        @Override
+        public int getRow(String word)
+        {
+            Integer row = _rowDict.get(word);
+            return row == null ? -1 : row;
+        }
+
+        @Override
+        public String getWord(int row){return _words[row];}
+    }
+}
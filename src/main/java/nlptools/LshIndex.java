@@ -0,0 +1,278 @@
+package nlptools;
+
+import utilities.Logger;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**An LshIndex is an approximate nearest neighbor index over an
+ * EmbeddingMatrix, using random-hyperplane (angular) locality
+ * sensitive hashing: each of several tables hashes every row to
+ * the sign pattern of its projections onto numBits random
+ * hyperplanes, such that rows separated by a small angle tend to
+ * share buckets. A query gathers the rows in its bucket -- and in
+ * the buckets one bit away -- from every table, then reranks these
+ * candidates by exact cosine similarity. Buckets are stored as
+ * counting-sorted row arrays, so the index needs roughly
+ * (numTables x rows) ints.
+ *
+ * Indices are immutable once built, and may be queried
+ * from multiple threads.
+ *
+ * @author ccervantes
+ */
+public class LshIndex
+{
+    private static final int DEFAULT_NUM_TABLES = 32;
+    private static final int TARGET_BUCKET_SIZE = 64;
+    private static final int MAX_NUM_BITS = 20;
+
+    private EmbeddingMatrix _matrix;
+    private int _numTables;
+    private int _numBits;
+    private float[][] _planes;      //numTables x numBits hyperplanes
+    private int[][] _bucketStarts;  //per table, 2^numBits + 1 offsets into _bucketRows
+    private int[][] _bucketRows;    //per table, rows ordered by bucket
+
+    /**Builds an index over the given matrix, using the default
+     * number of tables and a number of bits such that buckets
+     * hold around TARGET_BUCKET_SIZE rows
+     *
+     * @param matrix
+     */
+    public LshIndex(EmbeddingMatrix matrix)
+    {
+        this(matrix, DEFAULT_NUM_TABLES, getDefaultNumBits(matrix.size()), 0L);
+    }
+
+    /**Builds an index over the given matrix with numTables hash tables
+     * of numBits bits each, where hyperplanes are drawn with the given
+     * seed. More tables increase recall (and query time); more bits
+     * shrink buckets, decreasing query time (and recall).
+     *
+     * @param matrix
+     * @param numTables
+     * @param numBits
+     * @param seed
+     */
+    public LshIndex(EmbeddingMatrix matrix, int numTables, int numBits, long seed)
+    {
+        if(numTables < 1)
+            throw new IllegalArgumentException("An LSH index needs at least one table");
+        if(numBits < 1 || numBits > MAX_NUM_BITS)
+            throw new IllegalArgumentException("Bits per table must be in [1, " +
+                    MAX_NUM_BITS + "]; found " + numBits);
+        _matrix = matrix;
+        _numTables = numTables;
+        _numBits = numBits;
+
+        int dim = matrix.getDim();
+        Random rand = new Random(seed);
+        _planes = new float[numTables * numBits][dim];
+        for(float[] plane : _planes)
+            for(int i=0; i<dim; i++)
+                plane[i] = (float)rand.nextGaussian();
+
+        //Hash every row into every table (in parallel), then
+        //counting-sort each table's rows by bucket
+        int numRows = matrix.size();
+        int[] hashes = new int[numRows * numTables];
+        IntStream.range(0, numRows).parallel().forEach(row -> {
+            float[] vec = new float[dim];
+            for(int i=0; i<dim; i++)
+                vec[i] = matrix.getUnitValue(row, i);
+            for(int t=0; t<numTables; t++)
+                hashes[row * numTables + t] = hash(vec, t);
+        });
+
+        int numBuckets = 1 << numBits;
+        _bucketStarts = new int[numTables][];
+        _bucketRows = new int[numTables][];
+        for(int t=0; t<numTables; t++){
+            int[] starts = new int[numBuckets + 1];
+            for(int row=0; row<numRows; row++)
+                starts[hashes[row * numTables + t] + 1]++;
+            for(int b=0; b<numBuckets; b++)
+                starts[b + 1] += starts[b];
+            int[] next = Arrays.copyOf(starts, numBuckets);
+            int[] bucketRows = new int[numRows];
+            for(int row=0; row<numRows; row++)
+                bucketRows[next[hashes[row * numTables + t]]++] = row;
+            _bucketStarts[t] = starts;
+            _bucketRows[t] = bucketRows;
+        }
+    }
+
+    /**Returns the number of bits per table for which an index over
+     * numRows rows has buckets of around TARGET_BUCKET_SIZE rows
+     *
+     * @param numRows
+     * @return
+     */
+    private static int getDefaultNumBits(int numRows)
+    {
+        int numBits = 31 - Integer.numberOfLeadingZeros(Math.max(1, numRows / TARGET_BUCKET_SIZE));
+        return Math.max(1, Math.min(MAX_NUM_BITS, numBits));
+    }
+
+    /* Getters */
+    public EmbeddingMatrix getMatrix(){return _matrix;}
+    public int getNumTables(){return _numTables;}
+    public int getNumBits(){return _numBits;}
+
+    /**Returns the given vector's bucket in the given table
+     *
+     * @param vec
+     * @param table
+     * @return
+     */
+    private int hash(float[] vec, int table)
+    {
+        int h = 0;
+        for(int b=0; b<_numBits; b++){
+            float[] plane = _planes[table * _numBits + b];
+            float proj = 0f;
+            for(int i=0; i<plane.length; i++)
+                proj += plane[i] * vec[i];
+            if(proj >= 0)
+                h |= 1 << b;
+        }
+        return h;
+    }
+
+    /**Returns the rows of (approximately) the k embeddings most
+     * similar to the given row (excluding the row itself), in order
+     * of decreasing cosine similarity; empty if row is -1
+     *
+     * @param row
+     * @param k
+     * @return
+     */
+    public int[] getNearestRows(int row, int k)
+    {
+        if(row < 0)
+            return new int[0];
+        float[] query = new float[_matrix.getDim()];
+        for(int i=0; i<query.length; i++)
+            query[i] = _matrix.getUnitValue(row, i);
+        return search(query, k, row);
+    }
+
+    /**Returns the rows of (approximately) the k embeddings most
+     * similar to the given query vector (which needn't be normalized),
+     * in order of decreasing cosine similarity
+     *
+     * @param query
+     * @param k
+     * @return
+     */
+    public int[] getNearestRows(float[] query, int k)
+    {
+        if(query.length != _matrix.getDim())
+            throw new IllegalArgumentException("Expected a " + _matrix.getDim() +
+                    "-dimensional query; found " + query.length);
+        return search(query, k, -1);
+    }
+
+    /**Returns, for each of the given rows, the rows of (approximately)
+     * the k embeddings most similar to it (excluding itself), in order
+     * of decreasing cosine similarity, searching with numThreads threads;
+     * rows of -1 have no neighbors
+     *
+     * @param rows
+     * @param k
+     * @param numThreads
+     * @return
+     */
+    public int[][] getNearestRows(int[] rows, int k, int numThreads)
+    {
+        return EmbeddingMatrix.runOnPool(numThreads, () -> IntStream.range(0, rows.length)
+                .parallel().mapToObj(q -> getNearestRows(rows[q], k)).toArray(int[][]::new));
+    }
+
+    /**Gathers the candidates for the given query from each table's
+     * bucket (and the buckets one bit away), returning the k most
+     * similar candidates other than the exclude row
+     *
+     * @param query
+     * @param k
+     * @param exclude
+     * @return
+     */
+    private int[] search(float[] query, int k, int exclude)
+    {
+        int[] candidates = new int[1024];
+        int numCandidates = 0;
+        for(int t=0; t<_numTables; t++){
+            int h = hash(query, t);
+            for(int probe=-1; probe<_numBits; probe++){
+                int bucket = probe < 0 ? h : h ^ (1 << probe);
+                int start = _bucketStarts[t][bucket], end = _bucketStarts[t][bucket + 1];
+                if(numCandidates + end - start > candidates.length)
+                    candidates = Arrays.copyOf(candidates,
+                            Math.max(2 * candidates.length, numCandidates + end - start));
+                System.arraycopy(_bucketRows[t], start, candidates, numCandidates, end - start);
+                numCandidates += end - start;
+            }
+        }
+
+        //Rows appear in several tables' buckets; sorting
+        //groups duplicates (and scans rows in memory order)
+        Arrays.sort(candidates, 0, numCandidates);
+        TopK topK = new TopK(k);
+        for(int c=0; c<numCandidates; c++){
+            int row = candidates[c];
+            if(row == exclude || (c > 0 && row == candidates[c - 1]))
+                continue;
+            float score = _matrix.dot(query, row);
+            if(score > topK.getThreshold())
+                topK.offer(row, score);
+        }
+        return topK.drainRows();
+    }
+
+    /**Benchmarks this index against exact search, for the k
+     * nearest neighbors of numQueries randomly chosen rows; logs
+     * exact and approximate per-query latencies and returns the
+     * index's recall (the fraction of exact neighbors found)
+     *
+     * @param numQueries
+     * @param k
+     * @param seed
+     * @return
+     */
+    public double benchmark(int numQueries, int k, long seed)
+    {
+        Random rand = new Random(seed);
+        int[] queries = new int[Math.min(numQueries, _matrix.size())];
+        for(int q=0; q<queries.length; q++)
+            queries[q] = rand.nextInt(_matrix.size());
+
+        long exactNanos = 0, approxNanos = 0;
+        long numFound = 0, numExact = 0;
+        for(int row : queries){
+            long start = System.nanoTime();
+            int[] exact = _matrix.getNearestRows(row, k);
+            exactNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int[] approx = getNearestRows(row, k);
+            approxNanos += System.nanoTime() - start;
+
+            Arrays.sort(approx);
+            for(int neighbor : exact)
+                if(Arrays.binarySearch(approx, neighbor) >= 0)
+                    numFound++;
+            numExact += exact.length;
+        }
+
+        double recall = numExact == 0 ? 1.0 : (double)numFound / numExact;
+        Logger.log("LSH (%d tables x %d bits) over %d rows; recall@%d: %.3f",
+                   _numTables, _numBits, _matrix.size(), k, recall);
+        Logger.log("Mean query latency; exact: %.3fms; approximate: %.3fms",
+                   exactNanos / 1e6 / Math.max(1, queries.length),
+                   approxNanos / 1e6 / Math.max(1, queries.length));
+        return recall;
+    }
+}
@@ -0,0 +1,117 @@
+package nlptools;
+
+/**A TopK retains the k highest-scoring rows offered to it,
+ * in a min-heap of primitive arrays (so offering a row, which
+ * is usually rejected against the heap's minimum, doesn't
+ * allocate). Not thread safe.
+ *
+ * @author ccervantes
+ */
+class TopK
+{
+    private int[] _rows;
+    private float[] _scores;
+    private int _size;
+
+    /**Creates a new, empty TopK retaining
+     * (up to) k rows
+     *
+     * @param k
+     */
+    TopK(int k)
+    {
+        if(k < 1)
+            throw new IllegalArgumentException("k must be positive");
+        _rows = new int[k];
+        _scores = new float[k];
+        _size = 0;
+    }
+
+    /**Removes all rows
+     */
+    void clear(){_size = 0;}
+
+    /**Returns the score a row must exceed to be retained
+     *
+     * @return
+     */
+    float getThreshold()
+    {
+        return _size < _rows.length ? Float.NEGATIVE_INFINITY : _scores[0];
+    }
+
+    /**Offers the given row and score, retaining the row
+     * if it's among the k highest scores seen
+     *
+     * @param row
+     * @param score
+     */
+    void offer(int row, float score)
+    {
+        if(_size < _rows.length){
+            //sift up
+            int i = _size++;
+            while(i > 0){
+                int parent = (i - 1) / 2;
+                if(_scores[parent] <= score)
+                    break;
+                _rows[i] = _rows[parent];
+                _scores[i] = _scores[parent];
+                i = parent;
+            }
+            _rows[i] = row;
+            _scores[i] = score;
+        } else if(score > _scores[0]){
+            //replace the minimum and sift down
+            int i = 0;
+            while(true){
+                int child = 2 * i + 1;
+                if(child >= _size)
+                    break;
+                if(child + 1 < _size && _scores[child + 1] < _scores[child])
+                    child++;
+                if(score <= _scores[child])
+                    break;
+                _rows[i] = _rows[child];
+                _scores[i] = _scores[child];
+                i = child;
+            }
+            _rows[i] = row;
+            _scores[i] = score;
+        }
+    }
+
+    /**Returns the retained rows, in order of decreasing
+     * score; empties the heap
+     *
+     * @return
+     */
+    int[] drainRows()
+    {
+        int[] rows = new int[_size];
+        while(_size > 0){
+            int last = --_size;
+            rows[last] = _rows[0];
+            int row = _rows[last];
+            float score = _scores[last];
+
+            //move the last element to the root and sift down
+            int i = 0;
+            while(true){
+                int child = 2 * i + 1;
+                if(child >= _size)
+                    break;
+                if(child + 1 < _size && _scores[child + 1] < _scores[child])
+                    child++;
+                if(score <= _scores[child])
+                    break;
+                _rows[i] = _rows[child];
+                _scores[i] = _scores[child];
+                i = child;
+            }
+            _rows[i] = row;
+            _scores[i] = score;
+        }
+        return rows;
+    }
+}
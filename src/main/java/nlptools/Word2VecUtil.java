@@ -1,29 +1,31 @@
 package nlptools;
 
 import utilities.Logger;
-import utilities.Util;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
 import java.util.zip.GZIPInputStream;
 
 /**Word2VecUtil wraps the process of reading word embeddings
  * from a gzipped word2vec file; to avoid either loading all
  * vectors into memory or opening and re-opening the file,
  * these objects require the set of needed words to be
- * provided up-front.
+ * provided up-front. Vectors are stored in an EmbeddingMatrix.
  *
  * @author ccervantes
  */
 public class Word2VecUtil
 {
-    private Map<String, List<Double>> _vectorDict;
-    private static List<Double> _emptyVector;
-    static {
-        _emptyVector = new ArrayList<>();
-        for(int i=0; i<300; i++)
-            _emptyVector.add(0.0);
-    }
+    private static final int DEFAULT_DIM = 300;
+    private static final int LINE_BATCH_SIZE = 2048;
+    private static final int EXACT_SEARCH_LIMIT = 200000;
+    private static final int PAIR_CHUNK_SIZE = 1024;
+
+    private EmbeddingMatrix _matrix;
+    private List<Double> _emptyVector;
+    private volatile LshIndex _lshIndex;
 
     /**Constructs a Word2VecUtil object, using the vectors at
      * the given w2vPath, and reads vectors for the given
@@ -34,33 +36,209 @@ public class Word2VecUtil
      */
     public Word2VecUtil(String w2vPath, Collection<String> wordSet)
     {
-        _vectorDict = new HashMap<>();
+        this(w2vPath, wordSet, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**Constructs a Word2VecUtil object, using the vectors at
+     * the given w2vPath, and reads vectors for the given
+     * wordSet, where lines are parsed with numThreads threads
+     * (see readTextFile())
+     *
+     * @param w2vPath
+     * @param wordSet
+     * @param numThreads
+     */
+    public Word2VecUtil(String w2vPath, Collection<String> wordSet, int numThreads)
+    {
         try{
-            InputStream gzipStream =
-                    new GZIPInputStream(new FileInputStream(w2vPath));
-            BufferedReader br =
-                    new BufferedReader(new InputStreamReader(gzipStream, "UTF-8"));
+            _matrix = readTextFile(w2vPath, wordSet, numThreads);
+        } catch (IOException ioEx) {
+            Logger.log(ioEx);
+        }
+        if(_matrix == null)
+            _matrix = new EmbeddingMatrix(DEFAULT_DIM, 1);
+        _emptyVector = Collections.unmodifiableList(new ArrayList<>(
+                Collections.nCopies(_matrix.getDim(), 0.0)));
+    }
 
+    /**Reads the vectors for the given words (all words, if wordSet is null)
+     * from the gzipped, tab-separated word2vec text file at w2vPath; returns
+     * null if there are no such vectors. The file is decompressed and split
+     * into batches of lines on this thread, while batches are parsed on a pool
+     * of numThreads threads (where unwanted words are skipped before their
+     * values are parsed), and parsed batches are added to the matrix in file
+     * order. The dimension is taken from the first vector read; vectors of
+     * any other dimension are skipped.
+     *
+     * @param w2vPath
+     * @param wordSet
+     * @param numThreads
+     * @return
+     * @throws IOException
+     */
+    public static EmbeddingMatrix readTextFile(String w2vPath, Collection<String> wordSet,
+                                               int numThreads) throws IOException
+    {
+        numThreads = Math.max(1, numThreads);
+        int initialCapacity = wordSet == null ? 1 << 16 : wordSet.size();
+
+        //Bound the batches in flight, so a slow pool
+        //doesn't buffer the whole file
+        int maxInFlight = 2 * numThreads;
+        Deque<Future<ParsedBatch>> inFlight = new ArrayDeque<>();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+        EmbeddingMatrix matrix = null;
+        try(BufferedReader br = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(w2vPath), 1 << 16), "UTF-8"), 1 << 16)){
+            List<String> lines = new ArrayList<>(LINE_BATCH_SIZE);
             String nextLine = br.readLine();
-            while(nextLine != null) {
-                String[] lineParts = nextLine.split("\t");
-                String word = lineParts[0];
-                if(wordSet.contains(word)){
-                    List<Double> vector = new ArrayList<>();
-                    for(int i=1; i<lineParts.length; i++)
-                        vector.add(Double.parseDouble(lineParts[i]));
-                    _vectorDict.put(word, vector);
+            while(nextLine != null || !lines.isEmpty()){
+                if(nextLine != null)
+                    lines.add(nextLine);
+                if(lines.size() == LINE_BATCH_SIZE || (nextLine == null && !lines.isEmpty())){
+                    List<String> batch = lines;
+                    inFlight.add(pool.submit(() -> parseLines(batch, wordSet)));
+                    lines = new ArrayList<>(LINE_BATCH_SIZE);
+                    if(inFlight.size() >= maxInFlight)
+                        matrix = addBatch(matrix, inFlight.poll().get(), initialCapacity);
                 }
-                nextLine = br.readLine();
+                if(nextLine != null)
+                    nextLine = br.readLine();
             }
-            br.close();
-        } catch (IOException ioEx) {
-            Logger.log(ioEx);
+            while(!inFlight.isEmpty())
+                matrix = addBatch(matrix, inFlight.poll().get(), initialCapacity);
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new IOException("Failed to read " + w2vPath, ex);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if(matrix != null)
+            matrix.trim();
+        return matrix;
+    }
+
+    /**Parses the vectors for the given words (all words,
+     * if wordSet is null) from the given lines
+     *
+     * @param lines
+     * @param wordSet
+     * @return
+     */
+    private static ParsedBatch parseLines(List<String> lines, Collection<String> wordSet)
+    {
+        ParsedBatch batch = new ParsedBatch();
+        for(String line : lines){
+            int tabIdx = line.indexOf('\t');
+            if(tabIdx <= 0)
+                continue;
+            String word = line.substring(0, tabIdx);
+            if(wordSet != null && !wordSet.contains(word))
+                continue;
+
+            int numValues = batch.numValues;
+            try{
+                int dim = 0;
+                for(int start = tabIdx + 1; start <= line.length(); ){
+                    int end = line.indexOf('\t', start);
+                    if(end < 0)
+                        end = line.length();
+                    if(end > start){
+                        batch.addValue(Float.parseFloat(line.substring(start, end)));
+                        dim++;
+                    }
+                    start = end + 1;
+                }
+                batch.words.add(word);
+                batch.dims.add(dim);
+            } catch (NumberFormatException nfEx) {
+                Logger.log("WARNING: skipping %s (%s)", word, nfEx.getMessage());
+                batch.numValues = numValues;
+            }
+        }
+        return batch;
+    }
+
+    /**Adds the given batch's vectors to the matrix (creating it,
+     * with the first vector's dimension, if it's null); returns
+     * the matrix
+     *
+     * @param matrix
+     * @param batch
+     * @param initialCapacity
+     * @return
+     */
+    private static EmbeddingMatrix addBatch(EmbeddingMatrix matrix, ParsedBatch batch,
+                                            int initialCapacity)
+    {
+        int offset = 0;
+        for(int i=0; i<batch.words.size(); i++){
+            int dim = batch.dims.get(i);
+            if(matrix == null && dim > 0)
+                matrix = new EmbeddingMatrix(dim, initialCapacity);
+            if(matrix != null && dim == matrix.getDim()){
+                matrix.add(batch.words.get(i), batch.values, offset);
+            } else {
+                Logger.log("WARNING: skipping %s (%d dimensions; expected %d)",
+                           batch.words.get(i), dim, matrix == null ? 0 : matrix.getDim());
+            }
+            offset += dim;
+        }
+        return matrix;
+    }
+
+    /**A ParsedBatch holds the words and (concatenated)
+     * vector values parsed from a batch of lines
+     */
+    private static class ParsedBatch
+    {
+        List<String> words = new ArrayList<>();
+        List<Integer> dims = new ArrayList<>();
+        float[] values = new float[1024];
+        int numValues = 0;
+
+        void addValue(float value)
+        {
+            if(numValues == values.length)
+                values = Arrays.copyOf(values, 2 * values.length);
+            values[numValues++] = value;
         }
     }
 
+    /**Constructs a Word2VecUtil object over the given embeddings
+     *
+     * @param matrix
+     */
+    public Word2VecUtil(EmbeddingMatrix matrix)
+    {
+        _matrix = matrix;
+        _emptyVector = Collections.unmodifiableList(new ArrayList<>(
+                Collections.nCopies(_matrix.getDim(), 0.0)));
+    }
+
+    /**Returns a Word2VecUtil object over the (memory-mapped)
+     * embeddings in the EmbeddingFile at the given path; see
+     * EmbeddingFile.convert() for creating these files from
+     * word2vec text files
+     *
+     * @param embeddingFile
+     * @return
+     * @throws IOException
+     */
+    public static Word2VecUtil fromEmbeddingFile(String embeddingFile) throws IOException
+    {
+        return new Word2VecUtil(EmbeddingFile.open(embeddingFile));
+    }
+
+    /**Returns the matrix of this object's embeddings
+     *
+     * @return
+     */
+    public EmbeddingMatrix getMatrix(){return _matrix;}
+
     /**Returns the cosine similarity between the vectors for
-     * the given words
+     * the given words; 0 if either word has no vector
      *
      * @param word1
      * @param word2
@@ -68,9 +246,86 @@ public class Word2VecUtil
      */
     public double getWord2VecSim(String word1, String word2)
     {
-        List<Double> vec1 = _vectorDict.get(word1);
-        List<Double> vec2 = _vectorDict.get(word2);
-        return Util.cosineSimilarity(vec1, vec2);
+        return _matrix.getSimilarity(word1, word2);
+    }
+
+    /**Returns the k words most similar to the given word, in order of
+     * decreasing cosine similarity; empty if the word has no vector.
+     * Search is exact for vocabularies of up to EXACT_SEARCH_LIMIT words
+     * and approximate (see LshIndex) for larger ones.
+     *
+     * @param word
+     * @param k
+     * @return
+     */
+    public List<String> getNearestWords(String word, int k)
+    {
+        int row = _matrix.getRow(word);
+        if(_matrix.size() <= EXACT_SEARCH_LIMIT)
+            return toWords(_matrix.getNearestRows(row, k));
+        return toWords(getLshIndex().getNearestRows(row, k));
+    }
+
+    /**Returns a mapping of the given words to the k words most similar
+     * to each, in order of decreasing cosine similarity, searching with
+     * numThreads threads (exactly or approximately, as in
+     * getNearestWords(String, int)); words without vectors map to
+     * empty lists
+     *
+     * @param words
+     * @param k
+     * @param numThreads
+     * @return
+     */
+    public Map<String, List<String>> getNearestWords(Collection<String> words, int k,
+                                                     int numThreads)
+    {
+        List<String> wordList = new ArrayList<>(new LinkedHashSet<>(words));
+        int[] rows = new int[wordList.size()];
+        for(int i=0; i<rows.length; i++)
+            rows[i] = _matrix.getRow(wordList.get(i));
+
+        int[][] neighbors;
+        if(_matrix.size() <= EXACT_SEARCH_LIMIT)
+            neighbors = _matrix.getNearestRows(rows, k, numThreads);
+        else
+            neighbors = getLshIndex().getNearestRows(rows, k, numThreads);
+
+        Map<String, List<String>> neighborDict = new HashMap<>();
+        for(int i=0; i<rows.length; i++)
+            neighborDict.put(wordList.get(i), toWords(neighbors[i]));
+        return neighborDict;
+    }
+
+    /**Returns this object's LSH index, building
+     * it on first use
+     *
+     * @return
+     */
+    private LshIndex getLshIndex()
+    {
+        if(_lshIndex == null){
+            synchronized (this){
+                if(_lshIndex == null){
+                    Logger.log("Building LSH index over %d vectors", _matrix.size());
+                    _lshIndex = new LshIndex(_matrix);
+                }
+            }
+        }
+        return _lshIndex;
+    }
+
+    /**Returns the words of the given rows
+     *
+     * @param rows
+     * @return
+     */
+    private List<String> toWords(int[] rows)
+    {
+        List<String> words = new ArrayList<>(rows.length);
+        for(int row : rows)
+            words.add(_matrix.getWord(row));
+        return words;
     }
 
     /**Returns the word embedding for the given word
@@ -80,9 +335,12 @@ public class Word2VecUtil
      */
     public List<Double> getVector(String word)
     {
-        if(_vectorDict.containsKey(word))
-            return _vectorDict.get(word);
-        return _emptyVector;
+        int row = _matrix.getRow(word);
+        if(row < 0)
+            return _emptyVector;
+        double[] vec = new double[_matrix.getDim()];
+        _matrix.getVector(row, vec, 0);
+        return toList(vec);
     }
 
     /**Returns the vectors for the given words concatenated together,
@@ -94,30 +352,200 @@ public class Word2VecUtil
      */
     public List<Double> getConcatVector(String word1, String word2)
     {
-        String s1, s2;
-        if(word1 == null)
-            word1 = "";
-        if(word2 == null)
-            word2 = "";
+        double[] c = new double[2 * _matrix.getDim()];
+        writeConcatVector(word1, word2, c, 0);
+        return toList(c);
+    }
+
+    /**Writes the cosine similarities between words_1[i] and words_2[i]
+     * into dest[offset + i], for each pair; computed in parallel (over
+     * chunks of pairs) if parallel is true. Neither the similarities
+     * nor the lookups allocate, so pairwise features for a whole
+     * document set can be filled into one reused buffer.
+     *
+     * @param words_1
+     * @param words_2
+     * @param dest
+     * @param offset
+     * @param parallel
+     */
+    public void getSimilarities(String[] words_1, String[] words_2,
+                                double[] dest, int offset, boolean parallel)
+    {
+        checkBatch(words_1, words_2, dest.length, offset, 1);
+        forEachChunk(words_1.length, parallel, (start, end) -> {
+            for(int i=start; i<end; i++)
+                dest[offset + i] = _matrix.getSimilarity(words_1[i], words_2[i]);
+        });
+    }
+
+    /**Writes the cosine similarities between words_1[i] and words_2[i]
+     * into dest[offset + i], for each pair; computed in parallel (over
+     * chunks of pairs) if parallel is true
+     *
+     * @param words_1
+     * @param words_2
+     * @param dest
+     * @param offset
+     * @param parallel
+     */
+    public void getSimilarities(String[] words_1, String[] words_2,
+                                float[] dest, int offset, boolean parallel)
+    {
+        checkBatch(words_1, words_2, dest.length, offset, 1);
+        forEachChunk(words_1.length, parallel, (start, end) -> {
+            for(int i=start; i<end; i++)
+                dest[offset + i] = (float)_matrix.getSimilarity(words_1[i], words_2[i]);
+        });
+    }
+
+    /**Writes the concatenated vectors of words_1[i] and words_2[i]
+     * (in alphabetical order, as in getConcatVector()) as row i of a
+     * row-major matrix starting at dest[offset], where rows have
+     * 2 x dim columns; computed in parallel (over chunks of pairs)
+     * if parallel is true
+     *
+     * @param words_1
+     * @param words_2
+     * @param dest
+     * @param offset
+     * @param parallel
+     */
+    public void getConcatVectors(String[] words_1, String[] words_2,
+                                 double[] dest, int offset, boolean parallel)
+    {
+        int rowLength = 2 * _matrix.getDim();
+        checkBatch(words_1, words_2, dest.length, offset, rowLength);
+        forEachChunk(words_1.length, parallel, (start, end) -> {
+            for(int i=start; i<end; i++)
+                writeConcatVector(words_1[i], words_2[i], dest, offset + i * rowLength);
+        });
+    }
+
+    /**Writes the concatenated vectors of words_1[i] and words_2[i]
+     * (in alphabetical order, as in getConcatVector()) as row i of a
+     * row-major matrix starting at dest[offset], where rows have
+     * 2 x dim columns; computed in parallel (over chunks of pairs)
+     * if parallel is true
+     *
+     * @param words_1
+     * @param words_2
+     * @param dest
+     * @param offset
+     * @param parallel
+     */
+    public void getConcatVectors(String[] words_1, String[] words_2,
+                                 float[] dest, int offset, boolean parallel)
+    {
+        int rowLength = 2 * _matrix.getDim();
+        checkBatch(words_1, words_2, dest.length, offset, rowLength);
+        forEachChunk(words_1.length, parallel, (start, end) -> {
+            for(int i=start; i<end; i++)
+                writeConcatVector(words_1[i], words_2[i], dest, offset + i * rowLength);
+        });
+    }
+
+    /**Writes the concatenated vectors of the given words (in
+     * alphabetical order) into dest[offset, offset + 2 x dim)
+     *
+     * @param word1
+     * @param word2
+     * @param dest
+     * @param offset
+     */
+    private void writeConcatVector(String word1, String word2, double[] dest, int offset)
+    {
+        boolean inOrder = isInOrder(word1, word2);
+        _matrix.getVector(_matrix.getRow(inOrder ? word1 : word2), dest, offset);
+        _matrix.getVector(_matrix.getRow(inOrder ? word2 : word1), dest,
+                          offset + _matrix.getDim());
+    }
+
+    /**Writes the concatenated vectors of the given words (in
+     * alphabetical order) into dest[offset, offset + 2 x dim)
+     *
+     * @param word1
+     * @param word2
+     * @param dest
+     * @param offset
+     */
+    private void writeConcatVector(String word1, String word2, float[] dest, int offset)
+    {
+        boolean inOrder = isInOrder(word1, word2);
+        _matrix.getVector(_matrix.getRow(inOrder ? word1 : word2), dest, offset);
+        _matrix.getVector(_matrix.getRow(inOrder ? word2 : word1), dest,
+                          offset + _matrix.getDim());
+    }
 
-        if(word1.compareToIgnoreCase(word2) < 0) {
-            s1 = word1;
-            s2 = word2;
+    /**Returns whether word1 precedes word2 alphabetically (ignoring
+     * case), where null words are treated as empty strings
+     *
+     * @param word1
+     * @param word2
+     * @return
+     */
+    private static boolean isInOrder(String word1, String word2)
+    {
+        return (word1 == null ? "" : word1).compareToIgnoreCase(word2 == null ? "" : word2) < 0;
+    }
+
+    /**Throws an IllegalArgumentException if the given word arrays
+     * differ in length, or if a destination of destLength can't hold
+     * their rowLength-wide rows from offset
+     *
+     * @param words_1
+     * @param words_2
+     * @param destLength
+     * @param offset
+     * @param rowLength
+     */
+    private static void checkBatch(String[] words_1, String[] words_2,
+                                   int destLength, int offset, int rowLength)
+    {
+        if(words_1.length != words_2.length)
+            throw new IllegalArgumentException("Word arrays differ in length (" +
+                    words_1.length + " vs " + words_2.length + ")");
+        if(offset < 0 || offset + (long)words_1.length * rowLength > destLength)
+            throw new IllegalArgumentException("Destination of length " + destLength +
+                    " can't hold " + words_1.length + " rows of " + rowLength +
+                    " from offset " + offset);
+    }
+
+    /**Applies the given operation to [0, numPairs) in chunks
+     * of PAIR_CHUNK_SIZE, in parallel if parallel is true
+     *
+     * @param numPairs
+     * @param parallel
+     * @param op
+     */
+    private static void forEachChunk(int numPairs, boolean parallel, ChunkOp op)
+    {
+        int numChunks = (numPairs + PAIR_CHUNK_SIZE - 1) / PAIR_CHUNK_SIZE;
+        if(!parallel || numChunks < 2){
+            op.apply(0, numPairs);
         } else {
-            s1 = word2;
-            s2 = word1;
+            IntStream.range(0, numChunks).parallel().forEach(c ->
+                    op.apply(c * PAIR_CHUNK_SIZE, Math.min(numPairs, (c + 1) * PAIR_CHUNK_SIZE)));
         }
+    }
+
+    /**A ChunkOp processes the pairs in [start, end)
+     */
+    private interface ChunkOp
+    {
+        void apply(int start, int end);
+    }
 
-        List<Double> a = _vectorDict.get(s1);
-        List<Double> b = _vectorDict.get(s2);
-
-        List<Double> c = new ArrayList<>();
-        if(a == null)
-            a = _emptyVector;
-        if(b == null)
-            b = _emptyVector;
-        c.addAll(a);
-        c.addAll(b);
-        return c;
+    /**Returns the given array as a list of doubles
+     *
+     * @param arr
+     * @return
+     */
+    private static List<Double> toList(double[] arr)
+    {
+        List<Double> list = new ArrayList<>(arr.length);
+        for(double d : arr)
+            list.add(d);
+        return list;
     }
 }
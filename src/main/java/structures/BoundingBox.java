@@ -1,11 +1,10 @@
 package structures;
 
+import utilities.RectUnion;
 import utilities.StringUtil;
 
 import java.awt.*;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
 
 /**Bounding boxes define image regions that belong to
  * a Document
@@ -23,6 +22,11 @@ public class BoundingBox extends Annotation
     private String _category;
     private String _supercategory;
 
+    //Union engines retain their working arrays, so
+    //each thread reuses its own across set IOU calls
+    private static final ThreadLocal<RectUnion> _union =
+            ThreadLocal.withInitial(RectUnion::new);
+
     /**Basic BoundingBox constructor
      *
      * @param xMin	- Minimum X coordinate
@@ -113,14 +117,20 @@ public class BoundingBox extends Annotation
      */
     public static double IOU(BoundingBox b1, BoundingBox b2)
     {
-        Rectangle intrsct = b1._rec.intersection(b2._rec);
-        double intrsct_area = intrsct.getHeight() * intrsct.getWidth();
+        //clamp at zero, so disjoint boxes don't have
+        //(negative width) x (negative height) intersections
+        long intrsctWidth = Math.max(0, Math.min(b1._xMax, b2._xMax) - Math.max(b1._xMin, b2._xMin));
+        long intrsctHeight = Math.max(0, Math.min(b1._yMax, b2._yMax) - Math.max(b1._yMin, b2._yMin));
+        double intrsct_area = intrsctWidth * intrsctHeight;
         return intrsct_area / (b1._area + b2._area - intrsct_area);
     }
 
-
     /**Returns the intersection over union of the two sets of bounding boxes, such that
-     * the total area represented by the boxes in each collection is accounted for
+     * the total area represented by the boxes in each collection is accounted for;
+     * the intersection of the sets' regions is computed exactly as
+     * |U1| + |U2| - |U1 u U2|, where each union's area is computed by
+     * sweep line (reusing this thread's union engine, so no geometry
+     * objects are allocated)
      *
      * @param boxes_1
      * @param boxes_2
@@ -128,45 +138,45 @@ public class BoundingBox extends Annotation
      */
     public static double IOU(Collection<BoundingBox> boxes_1, Collection<BoundingBox> boxes_2)
     {
-        //NOTE: trying to do this with built in awt objects seems like
-        //      more trouble than its worth
-        List<Rectangle> recList_1 = new ArrayList<>();
-        boxes_1.forEach(b -> recList_1.add(b._rec));
-        double area_1 = getTotalArea(recList_1);
-        List<Rectangle> recList_2 = new ArrayList<>();
-        boxes_2.forEach(b -> recList_2.add(b._rec));
-        double area_2 = getTotalArea(recList_2);
-
-        List<Rectangle> intrsctList = new ArrayList<>();
-        for(BoundingBox b1 : boxes_1)
-            for(BoundingBox b2 : boxes_2)
-                intrsctList.add(b1._rec.intersection(b2._rec));
-        double intrsct = getTotalArea(intrsctList);
-        return intrsct / (area_1 + area_2 - intrsct);
+        RectUnion union = _union.get();
+        union.clear();
+        addBoxes(union, boxes_1);
+        double area_1 = union.getArea();
+        union.clear();
+        addBoxes(union, boxes_2);
+        double area_2 = union.getArea();
+        addBoxes(union, boxes_1);
+        double area_12 = union.getArea();
+        union.clear();
+
+        double intrsct = area_1 + area_2 - area_12;
+        return intrsct / area_12;
     }
 
     /**Returns the size of the total area represented by the
-     * given list of rectangles, where intersecting areas
-     * count only once
+     * given boxes, where intersecting areas count only once
      *
-     * @param recList
+     * @param boxes
      * @return
      */
-    private static double getTotalArea(List<Rectangle> recList)
+    public static double getTotalArea(Collection<BoundingBox> boxes)
     {
-        double area = 0.0;
-        for(int i=0; i<recList.size(); i++){
-            Rectangle r = recList.get(i);
-
-            //Add area rectangle's area only once
-            area += r.getHeight() * r.getWidth();
-
-            //Remove each intersection once
-            for(int j=i+1; j<recList.size(); j++){
-                Rectangle intrsct = r.intersection(recList.get(j));
-                area -= intrsct.getHeight() * intrsct.getWidth();
-            }
-        }
+        RectUnion union = _union.get();
+        union.clear();
+        addBoxes(union, boxes);
+        double area = union.getArea();
+        union.clear();
         return area;
     }
+
+    /**Adds the given boxes' regions to the union
+     *
+     * @param union
+     * @param boxes
+     */
+    private static void addBoxes(RectUnion union, Collection<BoundingBox> boxes)
+    {
+        for(BoundingBox b : boxes)
+            union.add(b._xMin, b._yMin, b._xMax, b._yMax);
+    }
 }
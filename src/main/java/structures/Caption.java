@@ -1,9 +1,11 @@
 package structures;
 
 import edu.illinois.cs.cogcomp.nlp.lemmatizer.IllinoisLemmatizer;
+import utilities.StringPool;
 import utilities.StringUtil;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**The Caption class represents sentences in image caption datasets,
  * and is composed of tokens, chunks, and mentions.
@@ -13,11 +15,27 @@ import java.util.*;
 public class Caption extends Annotation {
     private static IllinoisLemmatizer lemmatizer;
 
+    //The lemmatizer isn't known to be thread safe, so lookups are
+    //serialized but memoized, letting captions parse concurrently
+    private static Map<String, Map<String, String>> _lemmaCache = new ConcurrentHashMap<>();
+
+    //POS tags and chunk types are drawn from small vocabularies,
+    //so their strings are shared across captions
+    private static StringPool _tagPool = new StringPool();
+
     private List<Token> _tokenList;
     private List<Chunk> _chunkList;
     private List<Mention> _mentionList;
     private DependencyNode _rootNode;
 
+    //The Document this Caption belongs to (if any), whose
+    //cached mention list is dropped when mentions are added
+    private Document _document;
+
+    //When loaded lazily, the dependency tree is
+    //only fetched on first access
+    private volatile Runnable _depLoader;
+
     /**Default Caption constructor
      *
      * @param docID
@@ -118,6 +136,8 @@ public class Caption extends Annotation {
         int insertionIdx =
                 Annotation.getInsertionIdx(_mentionList, m);
         _mentionList.add(insertionIdx, m);
+        if(_document != null)
+            _document.clearMentionList();
 
         //associates this mention's tokens with this index
         for (int i = startTokenIdx; i <= endTokenIdx; i++) {
@@ -138,7 +158,7 @@ public class Caption extends Annotation {
         List<String> depStrings = new ArrayList<>(dependencyStrings);
         boolean[] usedDepBits = new boolean[depStrings.size()];
         Arrays.fill(usedDepBits, false);
-        _rootNode = null;
+        DependencyNode rootNode = null;
 
         //construct our dependency tree, given the strings
         boolean addedNode;
@@ -154,16 +174,17 @@ public class Caption extends Annotation {
                         //if we already have a root node, bomb; I don't yet have a way to handle
                         //multi-rooted captions
                         //TODO: enable captions with multiple dependency roots
-                        if (_rootNode != null) {
-                            _rootNode = null;
-                            return;
+                        if (rootNode != null) {
+                            rootNode = null;
+                            addedNode = false;
+                            break;
                         }
-                        _rootNode = new DependencyNode(_tokenList.get(depTokenIdx));
+                        rootNode = new DependencyNode(_tokenList.get(depTokenIdx));
                         usedDepBits[i] = true;
                         addedNode = true;
-                    } else if (_rootNode != null) {
+                    } else if (rootNode != null) {
                         //get the tokens specified by the indices
-                        DependencyNode govNode = _rootNode.findDependent(_tokenList.get(govTokenIdx));
+                        DependencyNode govNode = rootNode.findDependent(_tokenList.get(govTokenIdx));
                         if (govNode != null) {
                             govNode.addDependent(_tokenList.get(depTokenIdx), depArr[1]);
                             usedDepBits[i] = true;
@@ -173,6 +194,11 @@ public class Caption extends Annotation {
                 }
             }
         } while (addedNode);
+
+        //publish the finished tree before clearing the loader, so
+        //readers that see no loader also see the tree
+        _rootNode = rootNode;
+        _depLoader = null;
     }
 
     /**Returns the Chunk immediately left-adjacent to ch;
@@ -199,9 +225,18 @@ public class Caption extends Annotation {
         return null;
     }
 
+    /**Attaches this Caption to the given Document
+     *
+     * @param d
+     */
+    void setDocument(Document d)
+    {
+        _document = d;
+    }
+
     /* Getters */
     public List<Mention> getMentionList() {
-        return _mentionList;
+        return Collections.unmodifiableList(_mentionList);
     }
 
     public List<Token> getTokenList() {
@@ -213,9 +248,25 @@ public class Caption extends Annotation {
     }
 
     public DependencyNode getRootNode() {
+        Runnable depLoader = _depLoader;
+        if(depLoader != null)
+            depLoader.run();
         return _rootNode;
     }
 
+    /**Sets the function that fetches (and sets) this Caption's
+     * dependency tree on first access, for Captions loaded without
+     * their dependencies; null if the tree is already loaded.
+     * Loaders may be shared by a Document's captions and run from
+     * several threads, so they must run at most once themselves
+     * (and return only once the tree is set)
+     *
+     * @param depLoader
+     */
+    public void setDependencyLoader(Runnable depLoader) {
+        _depLoader = depLoader;
+    }
+
     /**Returns a dataset-unique ID for this caption, in the form
      * docID#capIdx
      *
@@ -989,8 +1040,9 @@ public class Caption extends Annotation {
     public Chunk getSubjectOf(Mention m)
     {
         Chunk subjOf = null;
-        if(_rootNode != null){
-            List<DependencyNode> nodeList = _rootNode.getNodes(m);
+        DependencyNode rootNode = getRootNode();
+        if(rootNode != null){
+            List<DependencyNode> nodeList = rootNode.getNodes(m);
             for(DependencyNode n : nodeList) {
                 String relation = n.getRelationToGovernor();
                 if(relation != null && relation.contains("subj")){
@@ -1016,8 +1068,9 @@ public class Caption extends Annotation {
     public Chunk getObjectOf(Mention m)
     {
         Chunk objOf = null;
-        if(_rootNode != null){
-            List<DependencyNode> nodeList = _rootNode.getNodes(m);
+        DependencyNode rootNode = getRootNode();
+        if(rootNode != null){
+            List<DependencyNode> nodeList = rootNode.getNodes(m);
             for(DependencyNode n : nodeList) {
                 String relation = n.getRelationToGovernor();
                 if(relation != null && relation.contains("obj")){
@@ -1107,9 +1160,17 @@ public class Caption extends Annotation {
     public static Caption fromCorefStr(String corefStr) throws Exception
     {
         //get the id from the left side of the coref string
-        String[] corefStrArr = corefStr.split("\t");
-        String[] idArr = corefStrArr[0].split("#");
-        return fromCorefStr(corefStrArr[1], idArr[0], Integer.parseInt(idArr[1]));
+        int tabIdx = corefStr.indexOf('\t');
+        int capEnd = corefStr.indexOf('\t', tabIdx + 1);
+        if(capEnd < 0)
+            capEnd = corefStr.length();
+        int hashIdx = corefStr.indexOf('#');
+        int idxEnd = corefStr.indexOf('#', hashIdx + 1);
+        if(idxEnd < 0 || idxEnd > tabIdx)
+            idxEnd = tabIdx;
+        return parseCorefStr(corefStr, tabIdx + 1, capEnd,
+                corefStr.substring(0, hashIdx),
+                Integer.parseInt(corefStr.substring(hashIdx + 1, idxEnd)));
     }
 
     /**Loads a Caption from a coref string; this function assumes
@@ -1121,14 +1182,31 @@ public class Caption extends Annotation {
      * @param capIdx
      * @return
      */
-    public static Caption fromCorefStr(String corefStr, String docID, int capIdx) throws Exception
+    public static Caption fromCorefStr(CharSequence corefStr, String docID, int capIdx) throws Exception
+    {
+        return parseCorefStr(corefStr, 0, corefStr.length(), docID, capIdx);
+    }
+
+    /**Loads a Caption from the coref string in seq[start, end);
+     * rather than splitting the string, this scans it in place,
+     * only allocating strings for token text (and new POS tags /
+     * chunk types, which are otherwise pooled)
+     *
+     * @param seq
+     * @param start
+     * @param end
+     * @param docID
+     * @param capIdx
+     * @return
+     * @throws Exception
+     */
+    private static Caption parseCorefStr(CharSequence seq, int start, int end,
+                                         String docID, int capIdx) throws Exception
     {
         Caption c = new Caption();
         c._docID = docID;
         c._idx = capIdx;
 
-        //split the right side of the coref string by spaces
-        String[] captionArr = corefStr.split(" ");
         int entityCounter = 0;
         int chunkCounter = 0;
         int entityIdx = -1;
@@ -1139,9 +1217,24 @@ public class Caption extends Annotation {
         int tokenIdx_mentionStart = -1;
         int chunkIdx_start = -1;
         boolean expectingClosingPPBracket = false;
-        for(String s : captionArr) {
-            s = s.trim();
-            if (s.startsWith("[EN")) {
+
+        //walk the space-separated words of the string, where each
+        //word occupies [i, j) once trimmed
+        int wordStart = start;
+        while(wordStart <= end) {
+            int wordEnd = indexOf(seq, ' ', wordStart, end);
+            if(wordEnd < 0)
+                wordEnd = end;
+            int i = wordStart, j = wordEnd;
+            wordStart = wordEnd + 1;
+            while(i < j && seq.charAt(i) <= ' ')
+                i++;
+            while(j > i && seq.charAt(j-1) <= ' ')
+                j--;
+            if(i == j)
+                continue;
+
+            if (regionEquals(seq, i, j, "[EN", true)) {
                 //if we're building either a chunk or a mention,
                 //we shouldn't be here
                 if (entityIdx > -1 || chunkIdx > -1)
@@ -1149,11 +1242,21 @@ public class Caption extends Annotation {
                             docID + "#" + capIdx + ")\n" + "Tokens thusfar:\n" +
                             StringUtil.listToString(c._tokenList, " "));
                 entityIdx = entityCounter;
-                chainID = s.split("/")[1];
+
+                //the chain ID is the second slash-separated field
+                int slashIdx = indexOf(seq, '/', i, j);
+                if(slashIdx < 0 || onlySlashes(seq, slashIdx, j))
+                    throw new Exception("Found entity bracket without chain ID (" +
+                            docID + "#" + capIdx + ")\n" + "Bracket: " +
+                            seq.subSequence(i, j));
+                int chainEnd = indexOf(seq, '/', slashIdx + 1, j);
+                if(chainEnd < 0)
+                    chainEnd = j;
+                chainID = seq.subSequence(slashIdx + 1, chainEnd).toString();
                 tokenIdx_mentionStart = c._tokenList.size();
                 chunkIdx_start = c._chunkList.size();
-            } else if (s.startsWith("[")) {
-                if (chunkIdx > -1 && s.equals("[PP")){
+            } else if (seq.charAt(i) == '[') {
+                if (chunkIdx > -1 && regionEquals(seq, i, j, "[PP", false)){
                     System.err.println("WARNING: Ignoring internal PP bracket for v1 annotations for " +
                             docID + "#" + capIdx);
                     expectingClosingPPBracket = true;
@@ -1162,16 +1265,25 @@ public class Caption extends Annotation {
                             docID + "#" + capIdx + ")\n" + "Tokens thusfar:\n" +
                             StringUtil.listToString(c._tokenList, " "));
                 } else {
-                    //Drop the special chunk types from the DenotationGraph
-                    //pipeline
-                    chunkType = s.replace("[", "");
-                    if(chunkType.contains("/"))
-                        chunkType = chunkType.split("/")[0];
+                    //Drop the brackets and the special chunk types
+                    //from the DenotationGraph pipeline
+                    int typeEnd = indexOf(seq, '/', i, j);
+                    if(typeEnd < 0)
+                        typeEnd = j;
+                    if(indexOf(seq, '[', i + 1, typeEnd) < 0){
+                        chunkType = _tagPool.intern(seq, i + 1, typeEnd);
+                    } else {
+                        StringBuilder sb = new StringBuilder();
+                        for(int k=i; k<typeEnd; k++)
+                            if(seq.charAt(k) != '[')
+                                sb.append(seq.charAt(k));
+                        chunkType = _tagPool.intern(sb.toString());
+                    }
 
                     chunkIdx = chunkCounter;
                     tokenIdx_chunkStart = c._tokenList.size();
                 }
-            } else if (s.equals("]")) {
+            } else if (j - i == 1 && seq.charAt(i) == ']') {
                 if(expectingClosingPPBracket){
                     // Just ignore this closing bracket
                     expectingClosingPPBracket = false;
@@ -1201,21 +1313,33 @@ public class Caption extends Annotation {
                             docID + "#" + capIdx + ")\n" + "Tokens thusfar:\n" +
                             StringUtil.listToString(c._tokenList, " "));
                 }
-            } else if(!s.isEmpty()) {
+            } else {
                 //if we've reached here, this is a token/POS combo
                 //UPDATE: in a small number of MSCOCO cases, there are additional spaces
-                //that must be removed; skip these
+                //that must be removed; these are skipped above
                 String text, pos, lemma;
-                if(s.equals("/")){
-                    text = pos = lemma = s;
+                if(j - i == 1 && seq.charAt(i) == '/'){
+                    text = pos = lemma = "/";
                 } else {
-                    String[] tokenArr = s.split("/");
-                    if(tokenArr.length < 2)
+                    int slashIdx = indexOf(seq, '/', i, j);
+                    if(slashIdx < 0 || onlySlashes(seq, slashIdx, j))
                         throw new Exception("Found token without POS (" +
-                                docID + "#" + capIdx + ")\n" + "Token: " + s);
-                    text = tokenArr[0].trim();
-                    pos = tokenArr[1].trim();
-                    lemma = lemmatizer.getLemma(text, pos).trim();
+                                docID + "#" + capIdx + ")\n" + "Token: " +
+                                seq.subSequence(i, j));
+                    int posStart = slashIdx + 1;
+                    int posEnd = indexOf(seq, '/', posStart, j);
+                    if(posEnd < 0)
+                        posEnd = j;
+                    int textEnd = slashIdx;
+                    while(textEnd > i && seq.charAt(textEnd-1) <= ' ')
+                        textEnd--;
+                    while(posStart < posEnd && seq.charAt(posStart) <= ' ')
+                        posStart++;
+                    while(posEnd > posStart && seq.charAt(posEnd-1) <= ' ')
+                        posEnd--;
+                    text = seq.subSequence(i, textEnd).toString();
+                    pos = _tagPool.intern(seq, posStart, posEnd);
+                    lemma = getLemma(text, pos);
                 }
                 Token t = new Token(c._docID, c._idx, c._tokenList.size(),
                         text, lemma, chunkIdx, entityIdx, chunkType, pos,
@@ -1226,6 +1350,62 @@ public class Caption extends Annotation {
         return c;
     }
 
+    /**Returns the index of the first ch in seq[start, end);
+     * -1 if there is none
+     *
+     * @param seq
+     * @param ch
+     * @param start
+     * @param end
+     * @return
+     */
+    private static int indexOf(CharSequence seq, char ch, int start, int end)
+    {
+        for(int i=start; i<end; i++)
+            if(seq.charAt(i) == ch)
+                return i;
+        return -1;
+    }
+
+    /**Returns whether seq[start, end) equals s or, if
+     * prefixOnly is specified, starts with s
+     *
+     * @param seq
+     * @param start
+     * @param end
+     * @param s
+     * @param prefixOnly
+     * @return
+     */
+    private static boolean regionEquals(CharSequence seq, int start, int end,
+                                        String s, boolean prefixOnly)
+    {
+        int len = end - start;
+        if(len < s.length() || (!prefixOnly && len != s.length()))
+            return false;
+        for(int i=0; i<s.length(); i++)
+            if(seq.charAt(start + i) != s.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**Returns whether seq[start, end) consists only of slashes;
+     * String.split("/") drops trailing empty fields, so words
+     * ending in these have no field after their first slash
+     *
+     * @param seq
+     * @param start
+     * @param end
+     * @return
+     */
+    private static boolean onlySlashes(CharSequence seq, int start, int end)
+    {
+        for(int i=start; i<end; i++)
+            if(seq.charAt(i) != '/')
+                return false;
+        return true;
+    }
+
     /**Loads a Caption from an entities string
      *
      * @param entitiesStr
@@ -1301,5 +1481,31 @@ public class Caption extends Annotation {
     public static void initLemmatizer()
     {
         lemmatizer = new IllinoisLemmatizer();
+        _lemmaCache.clear();
+    }
+
+    /**Returns the (trimmed) lemma for the given text and
+     * part of speech, consulting the lemmatizer only for
+     * pairs we haven't seen before
+     *
+     * @param text
+     * @param pos
+     * @return
+     */
+    private static String getLemma(String text, String pos)
+    {
+        Map<String, String> posLemmas = _lemmaCache.get(pos);
+        if(posLemmas == null){
+            _lemmaCache.putIfAbsent(pos, new ConcurrentHashMap<>());
+            posLemmas = _lemmaCache.get(pos);
+        }
+        String lemma = posLemmas.get(text);
+        if(lemma == null){
+            synchronized (Caption.class){
+                lemma = lemmatizer.getLemma(text, pos).trim();
+            }
+            posLemmas.putIfAbsent(text, lemma);
+        }
+        return lemma;
     }
 }
@@ -2,9 +2,10 @@ package structures;
 
 import utilities.*;
 
-import java.awt.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
 
 /**In the image caption setting, a Document consists of
  * a set of captions and (optionally) a set of boudning
@@ -25,6 +26,18 @@ public class Document
     List<Caption> _captionList;
     Set<BoundingBox> _boxSet;
 
+    //When loaded lazily, boxes are only fetched
+    //on first access
+    private volatile Runnable _boxLoader;
+
+    //Indices over the chains, kept consistent by addBoundingBox(),
+    //addChain(), and addMentionToChain(); the chain set and mention
+    //list are cached (immutable) views, rebuilt when stale
+    private Map<BoundingBox, Set<Chain>> _boxChainDict;
+    private Map<BoundingBox, Set<Mention>> _boxMentionDict;
+    private volatile Set<Chain> _chainSet;
+    private volatile List<Mention> _mentionList;
+
     public int height;
     public int width;
     public int crossVal;
@@ -134,14 +147,17 @@ public class Document
         _captionList = new ArrayList<>();
         _boxSet = new HashSet<>();
         _chainDict = new HashMap<>();
+        _boxChainDict = new HashMap<>();
+        _boxMentionDict = new HashMap<>();
     }
 
     /**Initializes the set of chains from the mentions in
-     * the caption list
+     * the caption list, attaching the captions to this Document
      */
     private void initChains()
     {
         for(Caption c : _captionList){
+            c.setDocument(this);
             for(Mention m : c.getMentionList()){
                 String chainID = m.getChainID();
 
@@ -154,11 +170,12 @@ public class Document
                 }
             }
         }
+        _chainSet = null;
     }
 
     /* Getters */
     public String getID(){return _ID;}
-    public Set<Chain> getChainSet(){return new HashSet<>(_chainDict.values());}
+    public Chain getChain(String chainID){return _chainDict.get(chainID);}
     public List<Caption> getCaptionList(){return _captionList;}
     public boolean getIsTest(){ return crossVal == 2;}
     public boolean getIsTrain(){ return crossVal == 1;}
@@ -166,15 +183,44 @@ public class Document
     public int getCrossVal(){return crossVal;}
 
 
-    /**Returns the list of mentions in this Document, ordered by
-     * their caption and the order within their caption
+    /**Returns the (unmodifiable) set of this Document's chains
+     *
+     * @return
+     */
+    public Set<Chain> getChainSet()
+    {
+        hydrateBoxes();
+        Set<Chain> chainSet = _chainSet;
+        if(chainSet == null){
+            chainSet = Collections.unmodifiableSet(new HashSet<>(_chainDict.values()));
+            _chainSet = chainSet;
+        }
+        return chainSet;
+    }
+
+    /**Returns the (unmodifiable) list of mentions in this Document,
+     * ordered by their caption and the order within their caption;
+     * the flattened list is cached, and dropped whenever captions or
+     * mentions are added (including mentions added directly to
+     * one of this Document's Captions)
      *
      * @return
      */
     public List<Mention> getMentionList()
     {
-        List<Mention> mentionList = new ArrayList<>();
-        _captionList.stream().forEachOrdered(c -> mentionList.addAll(c.getMentionList()));
+        List<Mention> mentionList = _mentionList;
+        if(mentionList == null){
+            int numMentions = 0;
+            for(Caption c : _captionList)
+                numMentions += c.getMentionList().size();
+            Mention[] mentionArr = new Mention[numMentions];
+            int i = 0;
+            for(Caption c : _captionList)
+                for(Mention m : c.getMentionList())
+                    mentionArr[i++] = m;
+            mentionList = Collections.unmodifiableList(Arrays.asList(mentionArr));
+            _mentionList = mentionList;
+        }
         return mentionList;
     }
 
@@ -207,9 +253,40 @@ public class Document
      */
     public Set<BoundingBox> getBoundingBoxSet()
     {
+        hydrateBoxes();
         return _boxSet;
     }
 
+    /**Sets the function that fetches (and adds) this Document's
+     * bounding boxes on first access, for Documents loaded without
+     * their boxes; null if boxes are already loaded
+     *
+     * @param boxLoader
+     */
+    public void setBoxLoader(Runnable boxLoader)
+    {
+        _boxLoader = boxLoader;
+    }
+
+    /**Runs the box loader, if boxes haven't been loaded yet; the
+     * loader is only cleared once it has finished, so threads that
+     * find no loader see all of its boxes (and threads that find
+     * one wait for it). A loader that throws is left in place, to
+     * be retried on the next access
+     */
+    private void hydrateBoxes()
+    {
+        if(_boxLoader == null)
+            return;
+        synchronized (this){
+            Runnable boxLoader = _boxLoader;
+            if(boxLoader != null){
+                boxLoader.run();
+                _boxLoader = null;
+            }
+        }
+    }
+
     /**Returns a list of coref strings for this document's captions,
      * given the set of predicted chains
      *
@@ -248,42 +325,56 @@ public class Document
     }
 
     /**Returns the percentage of the image that is covered
-     * by bounding boxes
+     * by bounding boxes; coverage is measured over the image's
+     * (width+1) x (height+1) integer points, and computed exactly
+     * as the area of the union of the boxes' cells (clipped
+     * to the image), rather than point by point
      *
      * @return - The percentage (0-1) of the image
      * 			 covered by bounding boxes
      */
     public double getBoxCoveragePercentage()
     {
-        //first, let's build a mapping of pixels that
-        //occur in our boxes
-        Set<Rectangle> recSet = new HashSet<>();
+        return getBoxCoveragePercentage(new RectUnion());
+    }
+
+    /**Returns the percentage of the image that is covered
+     * by bounding boxes, using (and clearing) the given
+     * union engine
+     *
+     * @param union
+     * @return
+     */
+    private double getBoxCoveragePercentage(RectUnion union)
+    {
+        hydrateBoxes();
+        union.clear();
         for(Chain c : _chainDict.values())
             for(BoundingBox b : c.getBoundingBoxSet())
-                recSet.add(b.getRec());
-
-        //and now let's go through our image, checking
-        //whether each point is covered
-        Set<Point> pointSet = new HashSet<>();
-        for(int x = 0; x <= width; x++) {
-            for(int y = 0; y <= height; y++) {
-                Point p = new Point(x,y);
-                pointSet.add(p);
-            }
-        }
+                union.addClipped(b.getXMin(), b.getYMin(), b.getXMax(), b.getYMax(),
+                                 0, 0, width + 1, height + 1);
 
-        int totalPoints = pointSet.size();
-        int coveredPoints = 0;
-        for(Point p : pointSet) {
-            for(Rectangle r : recSet) {
-                if(r.contains(p)) {
-                    coveredPoints++;
-                    break;
-                }
-            }
-        }
+        double totalPoints = (width + 1.0) * (height + 1.0);
+        return union.getArea() / totalPoints;
+    }
 
-        return (double)coveredPoints / (double)totalPoints;
+    /**Returns a mapping of Document IDs to the percentage of their
+     * images covered by bounding boxes, for the given Documents;
+     * coverage is computed in parallel, with one union engine
+     * per thread. Lazily loaded boxes are fetched on the calling
+     * thread beforehand, so no database work runs on the common pool
+     *
+     * @param docs
+     * @return
+     */
+    public static Map<String, Double> getBoxCoveragePercentages(Collection<Document> docs)
+    {
+        docs.forEach(Document::hydrateBoxes);
+        ThreadLocal<RectUnion> unions = ThreadLocal.withInitial(RectUnion::new);
+        Map<String, Double> coverageDict = new ConcurrentHashMap<>();
+        docs.parallelStream().forEach(d ->
+                coverageDict.put(d.getID(), d.getBoxCoveragePercentage(unions.get())));
+        return coverageDict;
     }
 
     /**Returns the set of bounding boxes associated with
@@ -294,6 +385,7 @@ public class Document
      */
     public Set<BoundingBox> getBoxSetForMention(Mention m)
     {
+        hydrateBoxes();
         String chainID = m.getChainID();
         if(_chainDict.containsKey(chainID))
             return _chainDict.get(chainID).getBoundingBoxSet();
@@ -309,6 +401,7 @@ public class Document
      */
     public boolean getBoxesAreSubset(Mention m1, Mention m2)
     {
+        hydrateBoxes();
         Set<BoundingBox> boxes1 = getBoxSetForMention(m1);
         Set<BoundingBox> boxes2 = getBoxSetForMention(m2);
         Set<BoundingBox> intersect = new HashSet<>(boxes1);
@@ -340,19 +433,34 @@ public class Document
                boxes_2.size() > intersect.size();
     }
 
-    /**Returns the set of mentions associated with
-     * the given bounding box; null if no mentions are associated
+    /**Returns the (unmodifiable) set of mentions associated with
+     * the given bounding box; empty if no mentions are associated
      *
      * @param b
      * @return
      */
     public Set<Mention> getMentionSetForBox(BoundingBox b)
     {
-        Set<Mention> mentions = new HashSet<>();
-        for(Chain c : _chainDict.values())
-            if(c.getBoundingBoxSet().contains(b))
-                mentions.addAll(c.getMentionSet());
-        return mentions;
+        hydrateBoxes();
+        Set<Mention> mentions = _boxMentionDict.get(b);
+        if(mentions == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(mentions);
+    }
+
+    /**Returns the (unmodifiable) set of chains associated with
+     * the given bounding box; empty if no chains are associated
+     *
+     * @param b
+     * @return
+     */
+    public Set<Chain> getChainSetForBox(BoundingBox b)
+    {
+        hydrateBoxes();
+        Set<Chain> chains = _boxChainDict.get(b);
+        if(chains == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(chains);
     }
 
     /**Adds the given bounding box to all the specified chain IDs
@@ -364,9 +472,36 @@ public class Document
     {
         _boxSet.add(b);
 
-        for(String chainID : assocChainIDs)
-            if(_chainDict.containsKey(chainID))
-                _chainDict.get(chainID).addBoundingBox(b);
+        for(String chainID : assocChainIDs){
+            Chain c = _chainDict.get(chainID);
+            if(c != null){
+                c.addBoundingBox(b);
+                indexBox(b, c);
+            }
+        }
+    }
+
+    /**Adds the association between box b and chain c
+     * (and c's mentions) to the box indices
+     *
+     * @param b
+     * @param c
+     */
+    private void indexBox(BoundingBox b, Chain c)
+    {
+        _boxChainDict.computeIfAbsent(b, k -> new HashSet<>()).add(c);
+        _boxMentionDict.computeIfAbsent(b, k -> new HashSet<>()).addAll(c.getMentionSet());
+    }
+
+    /**Rebuilds the box indices from the chains' boxes
+     */
+    private void reindexBoxes()
+    {
+        _boxChainDict.clear();
+        _boxMentionDict.clear();
+        for(Chain c : _chainDict.values())
+            for(BoundingBox b : c.getBoundingBoxSet())
+                indexBox(b, c);
     }
 
     /**Adds the given Caption to the internal list
@@ -380,6 +515,16 @@ public class Document
     {
         int insertionIdx = Annotation.getInsertionIdx(_captionList, c);
         _captionList.add(insertionIdx, c);
+        c.setDocument(this);
+        _mentionList = null;
+    }
+
+    /**Drops the cached mention list; called by this
+     * Document's Captions when their mentions change
+     */
+    void clearMentionList()
+    {
+        _mentionList = null;
     }
 
     /**Adds the given Chain to the Document;
@@ -390,7 +535,17 @@ public class Document
      */
     public void addChain(Chain c)
     {
-        _chainDict.put(c.getID(), c);
+        Chain prevChain = _chainDict.put(c.getID(), c);
+        _chainSet = null;
+
+        //A replaced chain's boxes may no longer be associated
+        //with its ID, so replacement requires a full reindex
+        if(prevChain != null && prevChain != c){
+            reindexBoxes();
+        } else {
+            for(BoundingBox b : c.getBoundingBoxSet())
+                indexBox(b, c);
+        }
     }
 
     /**Adds the given Mention to its owning Chain
@@ -404,9 +559,15 @@ public class Document
         //        this chain yet, add one (this should only
         //        trigger if we have some weird DB issues that
         //        should immediately be addressed)
-        if(!_chainDict.keySet().contains(m.getChainID()))
-            addChain(new Chain(_ID, m.getChainID()));
-        _chainDict.get(m.getChainID()).addMention(m);
+        Chain c = _chainDict.get(m.getChainID());
+        if(c == null){
+            c = new Chain(_ID, m.getChainID());
+            addChain(c);
+        }
+        c.addMention(m);
+        for(BoundingBox b : c.getBoundingBoxSet())
+            _boxMentionDict.computeIfAbsent(b, k -> new HashSet<>()).add(m);
+        _mentionList = null;
     }
 
     /**Sets the chains with the given chain IDs as scene chains;
@@ -417,9 +578,8 @@ public class Document
     public void setSceneChains(Collection<String> chainIDs)
     {
         for(String chainID : chainIDs)
-            for(Chain c : _chainDict.values())
-                if(c.getID().equals(chainID))
-                    c.isScene = true;
+            if(_chainDict.containsKey(chainID))
+                _chainDict.get(chainID).isScene = true;
     }
 
     /**Sets the chains with the given chain IDs as an original nobox chains;
@@ -430,9 +590,8 @@ public class Document
     public void setOrigNoboxChains(Collection<String> chainIDs)
     {
         for(String chainID : chainIDs)
-            for(Chain c : _chainDict.values())
-                if(c.getID().equals(chainID))
-                    c.isOrigNobox = true;
+            if(_chainDict.containsKey(chainID))
+                _chainDict.get(chainID).isOrigNobox = true;
     }
 
     /**Merges this document with the given document, d, where
@@ -444,6 +603,9 @@ public class Document
      */
     public void loadBoxesFromDocument(Document d)
     {
+        //the given document's boxes replace any we'd fetch
+        _boxLoader = null;
+
         //get the dimension data from this document
         height = d.height;
         width = d.width;
@@ -463,6 +625,7 @@ public class Document
                 _chainDict.get(c.getID()).isOrigNobox = c.isOrigNobox;
             }
         }
+        reindexBoxes();
     }
 
     /**Returns a list of strings representing this Document in the
@@ -474,6 +637,7 @@ public class Document
      */
     public List<String> toConll2012()
     {
+        hydrateBoxes();
         Set<Chain> chainSet = new HashSet<>(_chainDict.values());
         chainSet.remove(_chainDict.get("0"));
         return Document.toConll2012(this, chainSet);
@@ -539,7 +703,7 @@ public class Document
      */
     public Set<Chain[]> getPartOfChains()
     {
-        Set<Mention[]> partOfSet = new HashSet<>();
+        Set<Pair<Mention>> partOfSet = new HashSet<>();
 
         //Storing mention types (coarse)
         Map<Mention, String> typeDict = new HashMap<>();
@@ -652,11 +816,8 @@ public class Document
                 //Associate each bodypart as partOf the agent
                 if (agentCluster != null) {
                     for (Mention b : bodyparts) {
-                        for (Mention a : agentCluster) {
-                            Mention[] arr = {b, a};
-                            if (!Util.containsArr(partOfSet, arr))
-                                partOfSet.add(arr);
-                        }
+                        for (Mention a : agentCluster)
+                            partOfSet.add(new Pair<>(b, a));
                     }
                 }
             }
@@ -671,11 +832,8 @@ public class Document
                 //Associate the nearest preceding agent cluster
                 if(nearestLeft != null){
                     for(Mention cloth : clothing){
-                        for(Mention a : nearestLeft){
-                            Mention[] arr = {cloth, a};
-                            if(!Util.containsArr(partOfSet, arr))
-                                partOfSet.add(arr);
-                        }
+                        for(Mention a : nearestLeft)
+                            partOfSet.add(new Pair<>(cloth, a));
                     }
                 }
             }
@@ -685,23 +843,20 @@ public class Document
         //operates over entities (chains), not mentions, so scale
         //out, where a coref label means mentions cannot be in a
         //part-of relation
-        Set<Chain[]> partOfChains = new HashSet<>();
-        for(Mention[] pair : partOfSet){
-            if(!pair[0].getChainID().equals(pair[1].getChainID()) &&
-               !pair[0].getChainID().equals("0") && !pair[1].getChainID().equals("0")){
-                Chain[] arr = {_chainDict.get(pair[0].getChainID()),
-                               _chainDict.get(pair[1].getChainID())};
-                if(!Util.containsArr(partOfChains, arr))
-                    partOfChains.add(arr);
-            }
+        Set<Pair<Chain>> partOfChains = new HashSet<>();
+        for(Pair<Mention> pair : partOfSet){
+            String chainID_1 = pair.getFirst().getChainID();
+            String chainID_2 = pair.getSecond().getChainID();
+            if(!chainID_1.equals(chainID_2) && !chainID_1.equals("0") && !chainID_2.equals("0"))
+                partOfChains.add(new Pair<>(_chainDict.get(chainID_1), _chainDict.get(chainID_2)));
         }
 
         //We should be able to enforce transitivity in exactly
         //the same way as with subset pairs
-        _enforceSubsetTransitivity(partOfChains);
+        _enforceTransitivity(partOfChains);
 
         //Return the resulting chains
-        return partOfChains;
+        return _toArrSet(partOfChains, Chain[]::new);
     }
 
     /**Returns the set of part-of pairs
@@ -721,19 +876,18 @@ public class Document
      */
     public Set<Chain[]> getSubsetChains()
     {
-        Set<Chain[]> subsets = new HashSet<>();
+        Set<Pair<Chain>> subsets = new HashSet<>();
         subsets.addAll(_getSubsetMentions_boxes());
 
         //where there are conflicts, we defer to the box labeling over the heuristic
-        for(Chain[] pair :_getSubsetMentions_heuristic())
-            if(!Util.containsArr(subsets, pair) &&
-                    !Util.containsArr(subsets, new Chain[]{pair[1], pair[0]}))
+        for(Pair<Chain> pair :_getSubsetMentions_heuristic())
+            if(!subsets.contains(pair.reverse()))
                 subsets.add(pair);
 
         //enforce transitivity in our decisions
-        _enforceSubsetTransitivity(subsets);
+        _enforceTransitivity(subsets);
 
-        return subsets;
+        return _toArrSet(subsets, Chain[]::new);
     }
 
     /**Returns the set of subset pairs (as unique ID strings),
@@ -768,11 +922,11 @@ public class Document
      *
      * @return
      */
-    private Set<Chain[]> _getSubsetMentions_heuristic()
+    private Set<Pair<Chain>> _getSubsetMentions_heuristic()
     {
-        Set<Chain[]> subsets = new HashSet<>();
+        Set<Pair<Chain>> subsets = new HashSet<>();
         for(Caption c : _captionList){
-            Set<Mention[]> subsetsToAdd = new HashSet<>();
+            Set<Pair<Mention>> subsetsToAdd = new HashSet<>();
 
             //if for some reason this caption has no mentions, just continue
             if(c.getMentionList().isEmpty())
@@ -795,8 +949,8 @@ public class Document
                 //add it to the set
                 if(inters.size() == 1 && inters.get(0).toString().equals("of") &&
                    mPrime.getChainID().equals(m0.getChainID())){
-                    subsetsToAdd.add(new Mention[]{m, mPrime});
-                    subsetsToAdd.add(new Mention[]{m, m0});
+                    subsetsToAdd.add(new Pair<>(m, mPrime));
+                    subsetsToAdd.add(new Pair<>(m, m0));
                 }
             }
 
@@ -860,23 +1014,21 @@ public class Document
                     }
                     if(!subsetMentions.isEmpty()){
                         for(Mention m : subsetMentions)
-                            subsetsToAdd.add(new Mention[]{m, m0});
+                            subsetsToAdd.add(new Pair<>(m, m0));
                     }
                 }
             }
 
             //We do not add subset links where either mention is in our
             //set of nonvisuals or if the link is in our set of coref links
-            for(Mention[] pair : subsetsToAdd){
-                Mention sub = pair[0], sup = pair[1];
+            for(Pair<Mention> pair : subsetsToAdd){
+                Mention sub = pair.getFirst(), sup = pair.getSecond();
                 if(sub.getChainID().equals("0") || sup.getChainID().equals("0"))
                     continue;
                 if(sub.getChainID().equals(sup.getChainID()))
                     continue;
-                Chain[] chainPair = new Chain[]{_chainDict.get(sub.getChainID()),
-                    _chainDict.get(sup.getChainID())};
-                if(!Util.containsArr(subsets, chainPair))
-                    subsets.add(chainPair);
+                subsets.add(new Pair<>(_chainDict.get(sub.getChainID()),
+                                       _chainDict.get(sup.getChainID())));
             }
         }
         return subsets;
@@ -888,9 +1040,10 @@ public class Document
      *
      * @return
      */
-    private Set<Chain[]> _getSubsetMentions_boxes()
+    private Set<Pair<Chain>> _getSubsetMentions_boxes()
     {
-        Set<Chain[]> subsetChains = new HashSet<>();
+        hydrateBoxes();
+        Set<Pair<Chain>> subsetChains = new HashSet<>();
         List<Chain> chainList = new ArrayList<>(_chainDict.values());
         for(int i=0; i<chainList.size(); i++){
             Chain chain_i = chainList.get(i);
@@ -898,9 +1051,9 @@ public class Document
                 Chain chain_j = chainList.get(j);
 
                 if(getBoxesAreSubset(chain_i, chain_j))
-                    subsetChains.add(new Chain[]{chain_i, chain_j});
+                    subsetChains.add(new Pair<>(chain_i, chain_j));
                 else if(getBoxesAreSubset(chain_j, chain_i))
-                    subsetChains.add(new Chain[]{chain_j, chain_i});
+                    subsetChains.add(new Pair<>(chain_j, chain_i));
                 else {
                     boolean containsPeople_i = false, containsPeople_j = false;
                     for(Mention m : chain_i.getMentionSet())
@@ -937,9 +1090,9 @@ public class Document
 
                         if(coveredallBoxes) {
                             if(ij_ordering) {
-                                subsetChains.add(new Chain[]{chain_i, chain_j});
+                                subsetChains.add(new Pair<>(chain_i, chain_j));
                             } else {
-                                subsetChains.add(new Chain[]{chain_j, chain_i});
+                                subsetChains.add(new Pair<>(chain_j, chain_i));
                             }
                         }
                     }
@@ -956,7 +1109,7 @@ public class Document
      */
     public Set<Mention[]> getPronomCorefMentions()
     {
-        Set<Mention[]> corefPairs = new HashSet<>();
+        Set<Pair<Mention>> corefPairs = new HashSet<>();
         for(Caption c : _captionList){
             List<Mention> mentions = c.getMentionList();
             for(int i=0; i<mentions.size(); i++){
@@ -982,11 +1135,10 @@ public class Document
                     //  1) m_j is visual
                     //  2) the (m_i, m_j) pairing has not yet been added
                     //  3) m_j is non-pronominal
-                    Mention[] pair_ij = {m_pronom, m_j}, pair_ji = {m_j, m_pronom};
                     if(m_j.getChainID().equals("0") ||
                        m_j.getPronounType() != Mention.PRONOUN_TYPE.NONE ||
-                       Util.containsArr(corefPairs, pair_ij) ||
-                       Util.containsArr(corefPairs, pair_ji))
+                       corefPairs.contains(new Pair<>(m_pronom, m_j)) ||
+                       corefPairs.contains(new Pair<>(m_j, m_pronom)))
                         continue;
 
                     //Determine m_j's plurality
@@ -1097,10 +1249,10 @@ public class Document
                 }
 
                 if(m_toAttach != null)
-                    corefPairs.add(new Mention[]{m_pronom, m_toAttach});
+                    corefPairs.add(new Pair<>(m_pronom, m_toAttach));
             }
         }
-        return corefPairs;
+        return _toArrSet(corefPairs, Mention[]::new);
     }
 
     /**Associates mentions and boxes according to
@@ -1111,6 +1263,7 @@ public class Document
      */
     public Set<String> getHeuristicGroundingIDs()
     {
+        hydrateBoxes();
         Set<String> groundingIDs = new HashSet<>();
         for(Mention m : getMentionList()){
             String mentionCatStr = Mention.getLexicalEntry_cocoCategory(m);
@@ -1132,6 +1285,7 @@ public class Document
      */
     public Set<Chain> getPronomCorefChains()
     {
+        hydrateBoxes();
         Map<Mention, String> mentionChainDict = new HashMap<>();
 
         //Associate our regular mentions with their chain IDs
@@ -1158,38 +1312,63 @@ public class Document
         return corefChains;
     }
 
-    /**Cascades the given subset links, enforcing subset transitivity, such that
-     * 1) if a sub b and b sub c -> a sub c
-     * 2) if a sub b, c sub d, and b coref c -> a sub d
+    /**Cascades the given (ordered) chain links, enforcing transitivity, such
+     * that if a sub b and b sub c -> a sub c; the closure is computed with
+     * Warshall's algorithm over a bitset adjacency matrix of the chains
+     * that appear in the links
      *
-     * @param subsets
-     * @return
+     * @param links
      */
-    private void _enforceSubsetTransitivity(Set<Chain[]> subsets)
+    private static void _enforceTransitivity(Set<Pair<Chain>> links)
     {
-        //Enforce transitivity, such that if a sub b and b sub c, then a sub c
-        List<Chain[]> subsetList;
-        do{
-            subsetList = new ArrayList<>(subsets);
-            for(int i=0; i<subsetList.size(); i++){
-                Chain sub_i = subsetList.get(i)[0];
-                Chain sup_i = subsetList.get(i)[1];
-
-                for(int j=i+1; j<subsetList.size(); j++){
-                    Chain sub_j = subsetList.get(j)[0];
-                    Chain sup_j = subsetList.get(j)[1];
-
-                    Chain[] pairToAdd = null;
-                    if(sup_i.equals(sub_j))
-                        pairToAdd = new Chain[]{sub_i, sup_j};
-                    else if(sup_j.equals(sub_i))
-                        pairToAdd = new Chain[]{sub_j, sup_i};
-
-                    if(pairToAdd != null && !Util.containsArr(subsets, pairToAdd))
-                        subsets.add(pairToAdd);
+        //Index the chains that appear in these links
+        Map<Chain, Integer> chainIdxDict = new HashMap<>();
+        List<Chain> chainList = new ArrayList<>();
+        for(Pair<Chain> link : links){
+            for(Chain c : Arrays.asList(link.getFirst(), link.getSecond())){
+                if(!chainIdxDict.containsKey(c)){
+                    chainIdxDict.put(c, chainList.size());
+                    chainList.add(c);
                 }
             }
-        } while(subsets.size() != subsetList.size());
+        }
+
+        int numChains = chainList.size();
+        BitSet[] adjacency = new BitSet[numChains];
+        for(int i=0; i<numChains; i++)
+            adjacency[i] = new BitSet(numChains);
+        for(Pair<Chain> link : links)
+            adjacency[chainIdxDict.get(link.getFirst())].set(chainIdxDict.get(link.getSecond()));
+
+        //If i reaches k, i reaches everything k reaches
+        for(int k=0; k<numChains; k++)
+            for(int i=0; i<numChains; i++)
+                if(adjacency[i].get(k))
+                    adjacency[i].or(adjacency[k]);
+
+        for(int i=0; i<numChains; i++)
+            for(int j=adjacency[i].nextSetBit(0); j>=0; j=adjacency[i].nextSetBit(j+1))
+                links.add(new Pair<>(chainList.get(i), chainList.get(j)));
+    }
+
+    /**Returns the given pairs as a set of (two-element) arrays,
+     * for callers expecting array pairs
+     *
+     * @param pairs
+     * @param arrCtor
+     * @param <T>
+     * @return
+     */
+    private static <T> Set<T[]> _toArrSet(Collection<Pair<T>> pairs, IntFunction<T[]> arrCtor)
+    {
+        Set<T[]> arrSet = new HashSet<>();
+        for(Pair<T> pair : pairs){
+            T[] arr = arrCtor.apply(2);
+            arr[0] = pair.getFirst();
+            arr[1] = pair.getSecond();
+            arrSet.add(arr);
+        }
+        return arrSet;
     }
 
     /**Returns the pair of mention objects specified in the
@@ -4,17 +4,54 @@ import com.sun.rowset.CachedRowSetImpl;
 
 import javax.sql.rowset.CachedRowSet;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class DBConnector
+public class DBConnector implements AutoCloseable
 {
-    private Connection _conn;
-    private Statement _stmt;
+    private static final int CURSOR_FETCH_SIZE = 1000;
+    private static final int DEFAULT_MAX_POOL_SIZE = 32;
+    private static final int STMT_CACHE_SIZE = 32;
+    private static final long CONN_WAIT_SEC = 120;
+    private static final long HEALTH_CHECK_IDLE_MS = 30000;
+    private static final int DEFAULT_SUB_BATCH_SIZE = 1000;
+    private static final int MAX_UPDATE_RETRIES = 5;
+    private static final long RETRY_BACKOFF_MS = 100;
+    private static final int DEFAULT_BULK_TXN_SIZE = 100000;
+    private static final int BULK_CACHE_KB = 200000;
+    private static final String[] BULK_PRAGMAS = {"synchronous", "cache_size", "temp_store"};
+
     private String _connStr;
     private DBType _type;
 
+    //Connections are pooled (and reused across query, cursor, and
+    //update calls); permits bound the number of open connections
+    private int _maxPoolSize;
+    private Semaphore _connPermits;
+    private AtomicInteger _permitDebt;  //permits to retire as connections are released
+    private LinkedBlockingDeque<PooledConn> _idleConns;
+    private Map<Connection, PooledConn> _liveConns;
+    private volatile boolean _closed;
+
+    //Rows within a transaction are sent to the database
+    //in executeBatch() calls of (at most) this size
+    private int _subBatchSize;
+
+    //Update batches run on this executor, if set
+    private ExecutorService _updateExecutor;
+
+    //During an SQLite bulk load, all updates are funneled into
+    //a single writer, and connections trade durability for speed;
+    //updates hold the read side of the bulk lock throughout, so
+    //bulk loads only start or end between updates
+    private ReentrantReadWriteLock _bulkLock;
+    private volatile boolean _bulkLoad;
+    private volatile int _bulkTxnSize;
+    private ExecutorService _bulkWriter;
+    private String _origJournalMode;
+
     /**Creates a new DBConnector for a Sqllite DB
      *
      * @param path The path to the Sqllite DB
@@ -23,6 +60,7 @@ public class DBConnector
     {
         _connStr = "jdbc:sqlite:" + path;
         _type = DBType.SQLITE;
+        initPool();
     }
 
     /**Creates a new DBConnector for a MySQL DB
@@ -40,6 +78,10 @@ public class DBConnector
         //use client side prep statements to reduce
         //communication with the DB until we commit
         _connStr += "useServerPrepStmts=false";
+
+        //let the driver collapse batched inserts into
+        //multi-row INSERT statements
+        _connStr += "&rewriteBatchedStatements=true";
         _connStr += "&user=" + user;
         _connStr += "&password=" + password;
 
@@ -51,23 +93,51 @@ public class DBConnector
         _connStr += "&serverTimezone=America/Chicago";
 
         _type = DBType.MYSQL;
+        initPool();
+    }
+
+    /**Initializes the (empty) connection pool
+     */
+    private void initPool()
+    {
+        _maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+        _connPermits = new Semaphore(_maxPoolSize, true);
+        _permitDebt = new AtomicInteger(0);
+        _idleConns = new LinkedBlockingDeque<>();
+        _liveConns = new ConcurrentHashMap<>();
+        _closed = false;
+        _subBatchSize = DEFAULT_SUB_BATCH_SIZE;
+        _bulkLock = new ReentrantReadWriteLock();
+        _bulkLoad = false;
+        _bulkTxnSize = DEFAULT_BULK_TXN_SIZE;
     }
 
-    /**Queries the table specified in the given query and returns
-     * a CachedRowSet object; Note that this function opens and
-     * closes a new connection for the query
+    /**Queries the table specified in the given query (binding the
+     * given params, if any) and returns a CachedRowSet object;
+     * Note that this function borrows a pooled connection
+     * for the query
      *
      * @param query
+     * @param params
      * @return
      * @throws Exception
      */
-    public CachedRowSet query(String query) throws Exception
+    public CachedRowSet query(String query, Object... params) throws Exception
     {
-        openConn();
-        ResultSet rs = _stmt.executeQuery(query);
         CachedRowSetImpl crs = new CachedRowSetImpl();
-        crs.populate(rs);
-        closeConn();
+        PooledConn pc = acquireConn();
+        boolean healthy = false;
+        try{
+            PreparedStatement stmt = pc.prepare(query);
+            for(int i=0; i<params.length; i++)
+                stmt.setObject(i+1, params[i]);
+            ResultSet rs = stmt.executeQuery();
+            crs.populate(rs);
+            rs.close();
+            healthy = true;
+        } finally {
+            releaseConn(pc, healthy);
+        }
 
         if(crs.size() == 0)
             throw new Exception("Query returned no results.");
@@ -75,72 +145,185 @@ public class DBConnector
         return crs;
     }
 
+    /**Opens a forward-only, read-only cursor over the results of
+     * the given query (binding the given params, if any); unlike query(),
+     * rows are streamed rather than cached, so the returned ResultSet
+     * holds a pooled connection until it's passed to closeCursor()
+     *
+     * @param query     The query to execute
+     * @param params    Values to bind to the query's placeholders
+     * @return          A forward-only ResultSet
+     * @throws Exception
+     */
+    public ResultSet openCursor(String query, Object... params) throws Exception
+    {
+        PooledConn pc = acquireConn();
+        try{
+            PreparedStatement stmt = pc.prepare(query);
+
+            //MySQL only streams rows (instead of reading the whole result
+            //into memory) when given this particular fetch size
+            if(_type == DBType.MYSQL)
+                stmt.setFetchSize(Integer.MIN_VALUE);
+            else
+                stmt.setFetchSize(CURSOR_FETCH_SIZE);
+
+            for(int i=0; i<params.length; i++)
+                stmt.setObject(i+1, params[i]);
+            return stmt.executeQuery();
+        } catch(Exception ex) {
+            releaseConn(pc, false);
+            throw ex;
+        }
+    }
+
+    /**Closes a cursor opened with openCursor(), returning
+     * its connection to the pool (and its cached statement
+     * to non-streaming reads)
+     *
+     * @param rs
+     */
+    public void closeCursor(ResultSet rs)
+    {
+        if(rs == null)
+            return;
+        PooledConn pc = null;
+        boolean healthy = false;
+        try{
+            Statement stmt = rs.getStatement();
+            pc = _liveConns.get(stmt.getConnection());
+            rs.close();
+
+            //the statement stays cached, so restore the default fetch
+            //size (lest later query() calls with this SQL stream)
+            stmt.setFetchSize(0);
+            healthy = true;
+        } catch(SQLException sqlEx) {
+            Logger.log(sqlEx);
+        } finally {
+            if(pc != null)
+                releaseConn(pc, healthy);
+        }
+    }
+
     /**Updates the table specified in the given query using the
      * given params. Optional arguments numThreads and batchSize
      * specify how many rows should be sent to the database
-     * simultaneously; each thread performs a single transaction
-     * with batchSize rows - if params.size() is less than batchSize,
-     * they're split equally between the rows instead
+     * simultaneously; each batch is a single transaction
+     * of batchSize rows - if params.size() is less than batchSize,
+     * they're split equally between the threads instead (except
+     * during bulk loads, whose transactions hold at least the
+     * bulk transaction size; see setBulkTxnSize()). Batches
+     * run on the update executor (see setUpdateExecutor()) with at
+     * most numThreads in flight; batches failing on transient lock
+     * errors are retried with backoff, and the returned UpdateResult
+     * reports the rows written / failed for every batch
      *
      * @param query         The query to execute
      * @param params        The set of values to update the table with
      * @param batchSize     The number of rows in each transaction  (params size by default)
-     * @param numThreads    The number of threads to run simultaneously (1 by default)
+     * @param numThreads    The number of batches to run simultaneously (1 by default)
+     * @return              The per-batch results of the update
+     * @throws Exception
      */
-    public void update(String query, Collection<Object[]> params,
+    public UpdateResult update(String query, Collection<Object[]> params,
                               int batchSize, int numThreads) throws Exception
     {
-        if(params.size() < batchSize)
+        _bulkLock.readLock().lock();
+        try{
+            return _update(query, params, batchSize, numThreads);
+        } finally {
+            _bulkLock.readLock().unlock();
+        }
+    }
+
+    /**Performs the update described above; callers
+     * must hold the read side of the bulk lock
+     *
+     * @param query
+     * @param params
+     * @param batchSize
+     * @param numThreads
+     * @return
+     * @throws Exception
+     */
+    private UpdateResult _update(String query, Collection<Object[]> params,
+                                 int batchSize, int numThreads) throws Exception
+    {
+        //SQLite only ever allows one writer, so during bulk loads
+        //we send everything through the single writer thread in
+        //large transactions
+        ExecutorService executor = _updateExecutor;
+        boolean bulkLoad = _bulkLoad;
+        if(bulkLoad){
+            executor = _bulkWriter;
+            numThreads = 1;
+            batchSize = Math.max(batchSize, _bulkTxnSize);
+        }
+
+        //(bulk transactions are never split; the last batch
+        //simply holds whatever rows remain)
+        if(!bulkLoad && params.size() < batchSize)
             batchSize = params.size() / numThreads;
+        batchSize = Math.max(batchSize, 1);
 
-        //for the purposes of partitioning our params into threads,
+        //for the purposes of partitioning our params into batches,
         //create a list
         List<Object[]> paramList = new ArrayList<>(params);
 
-        //create a threadpool
-        UpdateThread[] threadPool = new UpdateThread[numThreads];
-        int paramIdx = 0;
-        for(int i=0; i<threadPool.length; i++){
-            int endParamIdx = Math.min(paramIdx + batchSize,
-                    paramList.size());
-            List<Object[]> paramSubList =
-                    paramList.subList(paramIdx, endParamIdx);
-            paramIdx = endParamIdx;
-            threadPool[i] = new UpdateThread(query, paramSubList);
-            threadPool[i].start();
-            Logger.log("Started thread (%.2f%% rows working or complete)",
-                       100*(double)paramIdx/(double) paramList.size());
-        }
-
-        //keep walking through our params until we've gone through
-        while(paramIdx < paramList.size()){
-            //look for dead threads
-            for(int i=0; i<threadPool.length; i++){
-                if(!threadPool[i].isAlive()){
-                    Logger.log("Thread complete; starting new one (%.2f%% rows working or complete)",
-                            100*(double)paramIdx/(double) paramList.size());
-                    int endParamIdx =
-                            Math.min(paramIdx + batchSize, paramList.size());
-                    List<Object[]> paramSubList =
-                            paramList.subList(paramIdx, endParamIdx);
-                    paramIdx = endParamIdx;
-                    threadPool[i] = new UpdateThread(query, paramSubList);
-                    threadPool[i].start();
+        //use the configured executor, if there is one; otherwise
+        //create a pool just for this update
+        boolean ownExecutor = executor == null;
+        if(ownExecutor)
+            executor = Executors.newFixedThreadPool(numThreads);
+
+        //submit each batch, waiting for a free slot when
+        //numThreads batches are already in flight
+        Semaphore inFlight = new Semaphore(numThreads);
+        List<CompletableFuture<BatchResult>> futures = new ArrayList<>();
+        try{
+            for(int paramIdx=0; paramIdx<paramList.size(); paramIdx+=batchSize){
+                int endParamIdx = Math.min(paramIdx + batchSize,
+                        paramList.size());
+                List<Object[]> paramSubList =
+                        paramList.subList(paramIdx, endParamIdx);
+                int batchIdx = futures.size();
+                inFlight.acquire();
+                CompletableFuture<BatchResult> future;
+                try{
+                    future = CompletableFuture.supplyAsync(() ->
+                            updateBatch(query, batchIdx, paramSubList), executor);
+                } catch(RejectedExecutionException reEx) {
+                    inFlight.release();
+                    throw reEx;
                 }
+                future.whenComplete((r, ex) -> inFlight.release());
+                futures.add(future);
+                Logger.logStatus("Submitted batch %d (%.2f%% rows working or complete)",
+                        batchIdx, 100*(double)endParamIdx/(double) paramList.size());
             }
-            //Sleep for a tenth of a second before checking for thread life again
-            try{Thread.sleep(100);}catch(Exception ex){/*do nothing*/}
+        } finally {
+            if(ownExecutor)
+                executor.shutdown();
         }
 
-        //wait until all the threads have completed
-        boolean foundLiveThread = true;
-        while(foundLiveThread) {
-            foundLiveThread = false;
-            for(int i=0; i<threadPool.length; i++)
-                foundLiveThread |= threadPool[i].isAlive();
-            try{Thread.sleep(100);}catch(Exception ex){/*do nothing*/}
+        //wait for each batch; batches report their own failures,
+        //but any that escape are reported as that batch's result
+        UpdateResult result = new UpdateResult();
+        for(int batchIdx=0; batchIdx<futures.size(); batchIdx++){
+            try{
+                result.add(futures.get(batchIdx).join());
+            } catch(CompletionException | CancellationException ex) {
+                Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+                int numRows = Math.min(batchSize, paramList.size() - batchIdx * batchSize);
+                result.add(new BatchResult(batchIdx, 0, numRows, 1, cause instanceof Exception ?
+                        (Exception)cause : new ExecutionException(cause), null));
+            }
         }
-        Logger.log("Threads complete");
+        Logger.log("Batches complete (%d rows written; %d rows failed in %d batches)",
+                   result.getRowsWritten(), result.getRowsFailed(),
+                   result.getFailedBatches().size());
+        return result;
     }
 
     /**Updates the table specified in the given query using the
@@ -153,11 +336,12 @@ public class DBConnector
      * @param query         The query to execute
      * @param params        The set of values to update the table with
      * @param batchSize     The number of rows in each transaction  (params size by default)
+     * @return              The per-batch results of the update
      */
-    public void update(String query, Collection<Object[]> params,
+    public UpdateResult update(String query, Collection<Object[]> params,
                               int batchSize) throws Exception
     {
-        update(query, params, batchSize, 1);
+        return update(query, params, batchSize, 1);
     }
 
     /**Updates the table specified in the given query using the
@@ -169,11 +353,12 @@ public class DBConnector
      *
      * @param query         The query to execute
      * @param params        The set of values to update the table with
+     * @return              The per-batch results of the update
      */
-    public void update(String query,
+    public UpdateResult update(String query,
                        Collection<Object[]> params) throws Exception
     {
-        update(query, params, params.size());
+        return update(query, params, params.size());
     }
 
     /**Executes a single update with the given query to
@@ -184,10 +369,39 @@ public class DBConnector
      */
     public void createTable(String query) throws Exception
     {
-        openConn();
-        _stmt.executeUpdate(query);
-        _conn.commit();
-        closeConn();
+        PooledConn pc = acquireConn();
+        boolean healthy = false;
+        try{
+            Statement stmt = pc.conn.createStatement();
+            stmt.executeUpdate(query);
+            stmt.close();
+            pc.conn.commit();
+            healthy = true;
+        } finally {
+            releaseConn(pc, healthy);
+        }
+    }
+
+    /**Executes a single statement (ie. index creation or
+     * maintenance, which may return results we don't need)
+     * on the initialized connection
+     *
+     * @param statement
+     * @throws Exception
+     */
+    public void execute(String statement) throws Exception
+    {
+        PooledConn pc = acquireConn();
+        boolean healthy = false;
+        try{
+            Statement stmt = pc.conn.createStatement();
+            stmt.execute(statement);
+            stmt.close();
+            pc.conn.commit();
+            healthy = true;
+        } finally {
+            releaseConn(pc, healthy);
+        }
     }
 
     /**Returns the enum for the database type
@@ -196,6 +410,262 @@ public class DBConnector
      */
     public DBType getDBType(){return _type;}
 
+    /**Returns whether a bulk load is in progress, during which
+     * updates are written in transactions of (at least)
+     * getBulkTxnSize() rows
+     *
+     * @return
+     */
+    public boolean isBulkLoad(){return _bulkLoad;}
+
+    /**Returns the minimum number of rows per transaction
+     * during bulk loads
+     *
+     * @return
+     */
+    public int getBulkTxnSize(){return _bulkTxnSize;}
+
+    /**Sets the minimum number of rows per transaction during bulk
+     * loads (100k by default); larger transactions load faster, but
+     * callers accumulating rows for them (ie. populateDocumentDB())
+     * hold that many more in memory
+     *
+     * @param bulkTxnSize
+     */
+    public void setBulkTxnSize(int bulkTxnSize)
+    {
+        if(bulkTxnSize < 1)
+            throw new IllegalArgumentException("Bulk transaction size must be positive");
+        _bulkTxnSize = bulkTxnSize;
+    }
+
+    /**Returns the maximum number of connections this
+     * connector will hold open at once
+     *
+     * @return
+     */
+    public int getMaxPoolSize(){return _maxPoolSize;}
+
+    /**Sets the maximum number of connections this connector will
+     * hold open at once; callers needing a connection when all are
+     * in use wait for one to be released. Shrinking never blocks:
+     * free permits are retired immediately, and the rest as
+     * connections in use are released
+     *
+     * @param maxPoolSize
+     */
+    public synchronized void setMaxPoolSize(int maxPoolSize)
+    {
+        if(maxPoolSize < 1)
+            throw new IllegalArgumentException("Pool size must be positive");
+        int delta = maxPoolSize - _maxPoolSize;
+        _maxPoolSize = maxPoolSize;
+        if(delta > 0){
+            //cancel outstanding retirements before adding permits
+            while(delta > 0){
+                int debt = _permitDebt.get();
+                if(debt == 0)
+                    break;
+                int paid = Math.min(debt, delta);
+                if(_permitDebt.compareAndSet(debt, debt - paid))
+                    delta -= paid;
+            }
+            if(delta > 0)
+                _connPermits.release(delta);
+        } else if(delta < 0){
+            int toRetire = -delta;
+            while(toRetire > 0 && _connPermits.tryAcquire())
+                toRetire--;
+            _permitDebt.addAndGet(toRetire);
+
+            //don't keep more idle connections than we may use
+            PooledConn pc;
+            while(_idleConns.size() > maxPoolSize && (pc = _idleConns.pollLast()) != null)
+                pc.close();
+        }
+    }
+
+    /**Returns a connection's permit, unless the pool has shrunk
+     * and the permit should be retired instead
+     */
+    private void releasePermit()
+    {
+        int debt;
+        while((debt = _permitDebt.get()) > 0)
+            if(_permitDebt.compareAndSet(debt, debt - 1))
+                return;
+        _connPermits.release();
+    }
+
+    /**Returns the number of rows sent to the database in
+     * each executeBatch() call during updates
+     *
+     * @return
+     */
+    public int getSubBatchSize(){return _subBatchSize;}
+
+    /**Sets the number of rows sent to the database in each
+     * executeBatch() call during updates; this is independent of
+     * (and typically much smaller than) the update's batchSize,
+     * which determines the rows per transaction
+     *
+     * @param subBatchSize
+     */
+    public void setSubBatchSize(int subBatchSize)
+    {
+        if(subBatchSize < 1)
+            throw new IllegalArgumentException("Sub-batch size must be positive");
+        _subBatchSize = subBatchSize;
+    }
+
+    /**Sets the executor on which update batches run (ie. a
+     * work-stealing pool shared across updates); the executor
+     * remains owned by the caller, and is not shut down by this
+     * connector. If null (the default), each update() creates -
+     * and shuts down - its own fixed pool of numThreads threads
+     *
+     * @param executor
+     */
+    public void setUpdateExecutor(ExecutorService executor)
+    {
+        _updateExecutor = executor;
+    }
+
+    /**Starts an SQLite bulk load, during which all updates (from
+     * any number of callers) are funneled into a single writer
+     * thread in large transactions, the database uses WAL journaling,
+     * and connections relax synchronous writes; endBulkLoad()
+     * restores the settings in effect before the bulk load. Does nothing for MySQL databases
+     *
+     * NOTE: A crash during a bulk load may corrupt the database;
+     *       only use this when building a database from scratch
+     *
+     * @throws Exception
+     */
+    public void startBulkLoad() throws Exception
+    {
+        if(_type != DBType.SQLITE)
+            return;
+        _bulkLock.writeLock().lock();
+        try{
+            _startBulkLoad();
+        } finally {
+            _bulkLock.writeLock().unlock();
+        }
+    }
+
+    /**Starts a bulk load (see above); callers must
+     * hold the write side of the bulk lock
+     *
+     * @throws Exception
+     */
+    private void _startBulkLoad() throws Exception
+    {
+        if(_bulkLoad)
+            return;
+
+        //journal mode is a property of the database file (rather than
+        //the connection), so we set it once and remember the original
+        PooledConn pc = acquireConn();
+        boolean healthy = false;
+        try{
+            _origJournalMode = executePragma(pc, "journal_mode");
+            executePragma(pc, "journal_mode=WAL");
+            healthy = true;
+        } finally {
+            releaseConn(pc, healthy);
+        }
+        _bulkWriter = Executors.newSingleThreadExecutor();
+        _bulkLoad = true;
+        Logger.log("Started bulk load (journal mode was %s)", _origJournalMode);
+    }
+
+    /**Ends an SQLite bulk load, waiting for in-flight updates,
+     * checkpointing the WAL, and restoring the original journal
+     * mode (connections restore their own synchronous, cache size,
+     * and temp store settings as they're next acquired)
+     *
+     * @throws Exception
+     */
+    public void endBulkLoad() throws Exception
+    {
+        _bulkLock.writeLock().lock();
+        try{
+            _endBulkLoad();
+        } finally {
+            _bulkLock.writeLock().unlock();
+        }
+    }
+
+    /**Ends a bulk load (see above); callers must
+     * hold the write side of the bulk lock
+     *
+     * @throws Exception
+     */
+    private void _endBulkLoad() throws Exception
+    {
+        if(!_bulkLoad)
+            return;
+        _bulkLoad = false;
+        _bulkWriter.shutdown();
+        _bulkWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        _bulkWriter = null;
+
+        //connections restore their own settings as they're
+        //acquired, so this one is already safe
+        PooledConn pc = acquireConn();
+        boolean healthy = false;
+        try{
+            executePragma(pc, "wal_checkpoint(TRUNCATE)");
+            if(_origJournalMode != null && !_origJournalMode.equalsIgnoreCase("wal")){
+                try{
+                    executePragma(pc, "journal_mode=" + _origJournalMode);
+                } catch(SQLException sqlEx) {
+                    //WAL is still safe with synchronous writes, so if
+                    //other connections are busy, leave it in place
+                    Logger.log("Could not restore journal mode %s; leaving WAL",
+                               _origJournalMode);
+                    Logger.log(sqlEx);
+                }
+            }
+            healthy = true;
+        } finally {
+            releaseConn(pc, healthy);
+        }
+        Logger.log("Ended bulk load");
+    }
+
+    /**Ends any bulk load in progress (see endBulkLoad()) and closes
+     * all pooled connections; connections currently in use are
+     * closed as they're released
+     */
+    @Override
+    public void close()
+    {
+        //the bulk writer's thread must not outlive the connector,
+        //so if the bulk load can't be ended cleanly, abandon it
+        try{
+            endBulkLoad();
+        } catch(Exception ex) {
+            if(ex instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            Logger.log(ex);
+            _bulkLock.writeLock().lock();
+            try{
+                if(_bulkWriter != null){
+                    _bulkWriter.shutdownNow();
+                    _bulkWriter = null;
+                }
+            } finally {
+                _bulkLock.writeLock().unlock();
+            }
+        }
+        _closed = true;
+        PooledConn pc;
+        while((pc = _idleConns.poll()) != null)
+            pc.close();
+    }
+
     /**Creates a new Sqllite database at the given path
      *
      * @param path
@@ -242,31 +712,231 @@ public class DBConnector
         conn.close();
     }
 
-    /**Opens a connection to the initialized database
+    /**Borrows a connection from the pool, opening a new one if
+     * none are idle; idle connections that haven't been used
+     * recently are health-checked (and replaced, if they've died)
+     * before being returned. Waits for a connection to be released
+     * if the pool is at its maximum size
+     *
+     * @return
+     * @throws Exception
+     */
+    private PooledConn acquireConn() throws Exception
+    {
+        if(_closed)
+            throw new Exception("DBConnector has been closed");
+        if(!_connPermits.tryAcquire(CONN_WAIT_SEC, TimeUnit.SECONDS))
+            throw new Exception("Timed out waiting for a pooled connection (max: " +
+                                _maxPoolSize + ")");
+        try{
+            PooledConn pc;
+            while((pc = _idleConns.pollFirst()) != null){
+                if(System.currentTimeMillis() - pc.lastUsedTS < HEALTH_CHECK_IDLE_MS ||
+                   pc.isHealthy())
+                    break;
+                pc.close();
+            }
+            if(pc == null){
+                pc = new PooledConn(newConnection());
+                _liveConns.put(pc.conn, pc);
+            }
+
+            //bring SQLite connections in line with the current
+            //(bulk or safe) settings
+            if(_type == DBType.SQLITE && pc.bulkPragmas != _bulkLoad){
+                try{
+                    setBulkPragmas(pc, _bulkLoad);
+                } catch(SQLException sqlEx) {
+                    pc.close();
+                    throw sqlEx;
+                }
+            }
+            return pc;
+        } catch(Exception ex) {
+            releasePermit();
+            throw ex;
+        }
+    }
+
+    /**Returns the given connection to the pool, ending any open
+     * transaction; unhealthy connections (those whose last use
+     * threw an exception) are closed instead
      *
+     * @param pc
+     * @param healthy
+     */
+    private void releaseConn(PooledConn pc, boolean healthy)
+    {
+        try{
+            if(healthy)
+                pc.conn.rollback();
+        } catch(SQLException sqlEx) {
+            healthy = false;
+        }
+        if(healthy && !_closed){
+            pc.lastUsedTS = System.currentTimeMillis();
+            _idleConns.offerFirst(pc);
+        } else {
+            pc.close();
+        }
+        releasePermit();
+    }
+
+    /**Sets the per-connection SQLite pragmas for bulk loads
+     * (no synchronous writes, a large page cache, in-memory temp
+     * storage) or restores the values the connection had before
+     * its first bulk load
+     *
+     * @param pc
+     * @param bulk
+     * @throws SQLException
+     */
+    private void setBulkPragmas(PooledConn pc, boolean bulk) throws SQLException
+    {
+        if(bulk){
+            if(pc.origPragmas == null){
+                String[] origPragmas = new String[BULK_PRAGMAS.length];
+                for(int i=0; i<BULK_PRAGMAS.length; i++)
+                    origPragmas[i] = executePragma(pc, BULK_PRAGMAS[i]);
+                pc.origPragmas = origPragmas;
+            }
+            executePragma(pc, "synchronous=OFF");
+            executePragma(pc, "cache_size=-" + BULK_CACHE_KB);
+            executePragma(pc, "temp_store=MEMORY");
+        } else if(pc.origPragmas != null){
+            for(int i=0; i<BULK_PRAGMAS.length; i++)
+                if(pc.origPragmas[i] != null)
+                    executePragma(pc, BULK_PRAGMAS[i] + "=" + pc.origPragmas[i]);
+        }
+        pc.bulkPragmas = bulk;
+    }
+
+    /**Executes the given SQLite pragma outside of a transaction
+     * (as some pragmas can't be changed within one), returning
+     * the first column of its first row, if any
+     *
+     * @param pc
+     * @param pragma
+     * @return
+     * @throws SQLException
+     */
+    private static String executePragma(PooledConn pc, String pragma) throws SQLException
+    {
+        String val = null;
+        pc.conn.setAutoCommit(true);
+        try(Statement stmt = pc.conn.createStatement()){
+            if(stmt.execute("PRAGMA " + pragma)){
+                try(ResultSet rs = stmt.getResultSet()){
+                    if(rs.next())
+                        val = rs.getString(1);
+                }
+            }
+        } finally {
+            pc.conn.setAutoCommit(false);
+        }
+        return val;
+    }
+
+    /**Returns a new (non-autocommitting) connection
+     * to the initialized database
+     *
+     * @return
      * @throws Exception
      */
-    private void openConn() throws Exception
+    private Connection newConnection() throws Exception
     {
         if(_type == DBType.SQLITE)
             Class.forName("org.sqlite.JDBC");
         else if(_type == DBType.MYSQL)
             Class.forName("com.mysql.cj.jdbc.Driver");
 
-        _conn = DriverManager.getConnection(_connStr);
-        _conn.setAutoCommit(false);
-        _stmt = _conn.createStatement();
+        Connection conn = DriverManager.getConnection(_connStr);
+        conn.setAutoCommit(false);
+        return conn;
     }
 
-    /**Closes the connection to the initialized database
-     *
-     * @throws Exception
+    /**A PooledConn wraps a pooled connection and
+     * the prepared statements created on it, keyed by
+     * their SQL
      */
-    private void closeConn() throws Exception
+    private class PooledConn
     {
-        if(_stmt != null)
-            _stmt.close();
-        _conn.close();
+        Connection conn;
+        Map<String, PreparedStatement> stmtCache;
+        long lastUsedTS;
+        boolean bulkPragmas;
+        String[] origPragmas;   //BULK_PRAGMAS values before the first bulk load
+
+        PooledConn(Connection conn)
+        {
+            this.conn = conn;
+            lastUsedTS = System.currentTimeMillis();
+            bulkPragmas = false;
+
+            //keep only the most recently used statements,
+            //closing those we evict
+            stmtCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+                {
+                    if(size() > STMT_CACHE_SIZE){
+                        try{eldest.getValue().close();}catch(SQLException sqlEx){/*do nothing*/}
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /**Returns the cached prepared statement for the given
+         * SQL, preparing (and caching) it if necessary
+         *
+         * @param sql
+         * @return
+         * @throws SQLException
+         */
+        PreparedStatement prepare(String sql) throws SQLException
+        {
+            PreparedStatement stmt = stmtCache.get(sql);
+            if(stmt == null || stmt.isClosed()){
+                stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                                             ResultSet.CONCUR_READ_ONLY);
+                stmtCache.put(sql, stmt);
+            }
+            stmt.clearParameters();
+            return stmt;
+        }
+
+        /**Returns whether this connection is still usable
+         *
+         * @return
+         */
+        boolean isHealthy()
+        {
+            try{
+                return conn.isValid(5);
+            } catch(SQLException | AbstractMethodError ex) {
+                //older drivers don't implement isValid(), so
+                //fall back to a trivial query
+                try(Statement stmt = conn.createStatement()){
+                    stmt.executeQuery("SELECT 1").close();
+                    return true;
+                } catch(SQLException sqlEx) {
+                    return false;
+                }
+            }
+        }
+
+        /**Closes this connection and its cached statements
+         */
+        void close()
+        {
+            _liveConns.remove(conn);
+            for(PreparedStatement stmt : stmtCache.values())
+                try{stmt.close();}catch(SQLException sqlEx){/*do nothing*/}
+            stmtCache.clear();
+            try{conn.close();}catch(SQLException sqlEx){/*do nothing*/}
+        }
     }
 
     /**The Database type, which occasionally effects
@@ -277,77 +947,339 @@ public class DBConnector
         SQLITE, MYSQL
     }
 
-    /**Internal UpdateThread class uses the static
-     * conn string to execute updates in simultaneous
-     * batches
+    /**Writes the given rows as a single transaction, retrying (with
+     * exponential backoff) when the transaction fails on a transient
+     * lock error; failures are logged - along with the query and
+     * offending row - and reported in the returned BatchResult
+     * rather than thrown
+     *
+     * @param query     The query to execute
+     * @param batchIdx  The index of this batch within its update
+     * @param rows      The rows to update the table with
+     * @return          The result of this batch
+     */
+    private BatchResult updateBatch(String query, int batchIdx,
+                                    List<Object[]> rows)
+    {
+        for(int attempt=1; ; attempt++){
+            Object[] failedRow = null;
+            Exception error;
+            try{
+                return new BatchResult(batchIdx, writeBatch(query, rows),
+                                       0, attempt, null, null);
+            } catch(FailedRowException frEx) {
+                failedRow = frEx.row;
+                error = frEx.cause;
+            } catch(Exception ex) {
+                error = ex;
+            }
+
+            if(attempt <= MAX_UPDATE_RETRIES && isTransient(error)){
+                long backoffMS = (RETRY_BACKOFF_MS << (attempt - 1)) +
+                        ThreadLocalRandom.current().nextLong(RETRY_BACKOFF_MS);
+                Logger.log("Batch %d failed on a transient error (%s); " +
+                           "retrying in %dms", batchIdx, error.getMessage(),
+                           backoffMS);
+                try{
+                    Thread.sleep(backoffMS);
+                    continue;
+                } catch(InterruptedException iEx) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            //if we've encountered an exception, log it and the query
+            //that caused it
+            Logger.log(query);
+            if(failedRow != null)
+                Logger.log(StringUtil.listToString(failedRow, "|"));
+            Logger.log(error);
+            return new BatchResult(batchIdx, 0, rows.size(), attempt,
+                                   error, failedRow);
+        }
+    }
+
+    /**Writes the given rows as a single transaction, sending them
+     * to the database in sub-batches, and returns the number of
+     * rows written (as reported by the driver)
+     *
+     * @param query
+     * @param rows
+     * @return
+     * @throws Exception
+     */
+    private int writeBatch(String query, List<Object[]> rows) throws Exception
+    {
+        PooledConn pc = acquireConn();
+        boolean healthy = false;
+        try {
+            //use the connection's cached statement
+            PreparedStatement prepStmt = pc.prepare(query);
+
+            //set up the bindings, given our param list, sending
+            //them to the database in sub-batches
+            int rowsWritten = 0;
+            List<Object[]> subBatch = new ArrayList<>(_subBatchSize);
+            for(Object[] p : rows){
+                //add the prepared update (columns start at idx 1)
+                for(int i=0; i<p.length; i++)
+                    prepStmt.setObject(i+1, p[i]);
+                prepStmt.addBatch();
+                subBatch.add(p);
+                if(subBatch.size() >= _subBatchSize){
+                    rowsWritten += executeSubBatch(prepStmt, subBatch);
+                    subBatch.clear();
+                }
+            }
+            if(!subBatch.isEmpty())
+                rowsWritten += executeSubBatch(prepStmt, subBatch);
+
+            //commit the update in one large batch
+            pc.conn.commit();
+
+            //clear the bindings
+            prepStmt.clearParameters();
+            healthy = true;
+            return rowsWritten;
+        } finally {
+            releaseConn(pc, healthy);
+        }
+    }
+
+    /**Executes the rows added to prepStmt (which correspond
+     * to subBatch), returning the number of rows written; if
+     * the batch fails, throws a FailedRowException with the
+     * offending row, where the driver reports it
+     *
+     * @param prepStmt
+     * @param subBatch
+     * @return
+     * @throws FailedRowException
+     */
+    private static int executeSubBatch(PreparedStatement prepStmt,
+            List<Object[]> subBatch) throws FailedRowException
+    {
+        try{
+            int rowsWritten = 0;
+            for(int count : prepStmt.executeBatch()){
+                //drivers that can't report per-row counts
+                //(ie. for rewritten batches) signal success instead
+                if(count == Statement.SUCCESS_NO_INFO)
+                    rowsWritten++;
+                else if(count > 0)
+                    rowsWritten += count;
+            }
+            return rowsWritten;
+        } catch(BatchUpdateException buEx) {
+            //Drivers either stop at the first failure (such that
+            //the counts cover only the rows before it) or continue,
+            //marking failures as EXECUTE_FAILED; rewritten
+            //(multi-row) batches fail as a whole, in which case
+            //we can only point at the batch's first row
+            int[] counts = buEx.getUpdateCounts();
+            int failedIdx = 0;
+            if(counts != null){
+                failedIdx = counts.length;
+                for(int i=0; i<counts.length; i++){
+                    if(counts[i] == Statement.EXECUTE_FAILED){
+                        failedIdx = i;
+                        break;
+                    }
+                }
+            }
+            if(failedIdx >= subBatch.size())
+                failedIdx = 0;
+            Logger.log("Sub-batch failed at row %d of %d",
+                       failedIdx, subBatch.size());
+            throw new FailedRowException(subBatch.get(failedIdx), buEx);
+        } catch(SQLException sqlEx) {
+            Logger.log("Sub-batch of %d rows failed", subBatch.size());
+            throw new FailedRowException(subBatch.get(0), sqlEx);
+        }
+    }
+
+    /**Returns whether the given exception (or any of its causes)
+     * is a transient lock error - a busy / locked SQLite database,
+     * a MySQL lock wait timeout or deadlock, or a serialization
+     * failure - such that retrying the transaction may succeed
+     *
+     * @param ex
+     * @return
+     */
+    private boolean isTransient(Throwable ex)
+    {
+        for(Throwable t = ex; t != null; t = t.getCause()){
+            if(t instanceof SQLTransientException)
+                return true;
+            if(t instanceof SQLException){
+                SQLException sqlEx = (SQLException)t;
+                int code = sqlEx.getErrorCode();
+                if("40001".equals(sqlEx.getSQLState()))
+                    return true;
+                if(_type == DBType.MYSQL && (code == 1205 || code == 1213))
+                    return true;
+                if(_type == DBType.SQLITE){
+                    //SQLITE_BUSY and SQLITE_LOCKED
+                    String msg = sqlEx.getMessage();
+                    if(code == 5 || code == 6 || (msg != null &&
+                       (msg.contains("database is locked") ||
+                        msg.contains("SQLITE_BUSY"))))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**A BatchResult reports the outcome of a
+     * single update batch (transaction)
+     */
+    public static class BatchResult
+    {
+        private int _batchIdx;
+        private int _rowsWritten;
+        private int _rowsFailed;
+        private int _attempts;
+        private Exception _error;
+        private Object[] _failedRow;
+
+        private BatchResult(int batchIdx, int rowsWritten, int rowsFailed,
+                            int attempts, Exception error, Object[] failedRow)
+        {
+            _batchIdx = batchIdx;
+            _rowsWritten = rowsWritten;
+            _rowsFailed = rowsFailed;
+            _attempts = attempts;
+            _error = error;
+            _failedRow = failedRow;
+        }
+
+        /**Returns the index of this batch within its update
+         *
+         * @return
+         */
+        public int getBatchIdx(){return _batchIdx;}
+
+        /**Returns the number of rows this batch wrote, as
+         * reported by the driver (ie. excluding ignored rows)
+         *
+         * @return
+         */
+        public int getRowsWritten(){return _rowsWritten;}
+
+        /**Returns the number of rows that failed to be
+         * written (all of a failed batch's rows, since
+         * its transaction is rolled back)
+         *
+         * @return
+         */
+        public int getRowsFailed(){return _rowsFailed;}
+
+        /**Returns the number of times this batch was attempted
+         *
+         * @return
+         */
+        public int getAttempts(){return _attempts;}
+
+        /**Returns the error this batch failed with; null
+         * if the batch succeeded
+         *
+         * @return
+         */
+        public Exception getError(){return _error;}
+
+        /**Returns the row identified as having caused this
+         * batch's failure; null if none could be identified
+         *
+         * @return
+         */
+        public Object[] getFailedRow(){return _failedRow;}
+
+        /**Returns whether this batch was written
+         *
+         * @return
+         */
+        public boolean isSuccessful(){return _error == null;}
+    }
+
+    /**An UpdateResult aggregates the BatchResults of
+     * a single update() call
      */
-    public class UpdateThread extends Thread
+    public static class UpdateResult
     {
-        private String _query;
-        private Collection<Object[]> _params;
+        private List<BatchResult> _batchResults;
+        private int _rowsWritten;
+        private int _rowsFailed;
 
-        /**Initializes a new UpdateThread with a given
-         * query and set of values
+        private UpdateResult()
+        {
+            _batchResults = new ArrayList<>();
+            _rowsWritten = 0;
+            _rowsFailed = 0;
+        }
+
+        private void add(BatchResult result)
+        {
+            _batchResults.add(result);
+            _rowsWritten += result.getRowsWritten();
+            _rowsFailed += result.getRowsFailed();
+        }
+
+        /**Returns the results of each batch, in order
          *
-         * @param query
-         * @param params
-         * @throws Exception
+         * @return
          */
-        public UpdateThread(String query,
-            Collection<Object[]> params) throws Exception
+        public List<BatchResult> getBatchResults()
         {
-            _query = query;
-            _params = params;
+            return Collections.unmodifiableList(_batchResults);
         }
 
-        /**Executes the UpdateThread, updating all specified
-         * rows into the database
+        /**Returns the results of the batches that failed
+         *
+         * @return
          */
-        public void run()
+        public List<BatchResult> getFailedBatches()
         {
-            Connection conn;
-            Object[] currentParams = {};
-            try {
-                //initialize the conn
-                if(_connStr.contains("sqlite"))
-                    Class.forName("org.sqlite.JDBC");
-                else if(_connStr.contains("mysql"))
-                    Class.forName("com.mysql.cj.jdbc.Driver");
-
-                conn = DriverManager.getConnection(_connStr);
-                conn.setAutoCommit(false);
-                PreparedStatement prepStmt = conn.prepareStatement(_query);
-
-                //set up the bindings, given our param list
-                //(row counting starts at 1)
-                for(Object[] p : _params){
-                    //store our current params in case this query
-                    //fails
-                    currentParams = p;
-
-                    //execute the prepared update (columns start at idx 1)
-                    for(int i=0; i<p.length; i++)
-                        prepStmt.setObject(i+1, p[i]);
-                    prepStmt.executeUpdate();
-                }
+            List<BatchResult> failedBatches = new ArrayList<>();
+            for(BatchResult r : _batchResults)
+                if(!r.isSuccessful())
+                    failedBatches.add(r);
+            return failedBatches;
+        }
 
-                //commit the update in one large batch
-                conn.commit();
+        /**Returns the total number of rows written
+         *
+         * @return
+         */
+        public int getRowsWritten(){return _rowsWritten;}
 
-                //clear the bindings and close the connection
-                prepStmt.clearParameters();
-                prepStmt.close();
-                conn.close();
-            } catch(Exception ex) {
-                //if we've encountered an exception, log it and the query
-                //that caused it
-                Logger.log(_query);
-                Logger.log(StringUtil.listToString(currentParams, "|"));
-                Logger.log(ex);
-            }
-        }
-    }
-}
+        /**Returns the total number of rows that failed
+         * to be written
+         *
+         * @return
+         */
+        public int getRowsFailed(){return _rowsFailed;}
 
+        /**Returns whether every batch was written
+         *
+         * @return
+         */
+        public boolean isSuccessful(){return getFailedBatches().isEmpty();}
+    }
 
+    /**A FailedRowException ties an update failure
+     * to the row that caused it
+     */
+    private static class FailedRowException extends Exception
+    {
+        Object[] row;
+        SQLException cause;
 
+        FailedRowException(Object[] row, SQLException cause)
+        {
+            super(cause);
+            this.row = row;
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package utilities;
+
+import java.util.Objects;
+
+/**A Pair is an immutable, ordered pair of elements that --
+ * unlike a two-element array -- compares and hashes by its
+ * elements, such that pairs can be deduplicated in hash sets
+ * (rather than with Util.containsArr's linear scans)
+ *
+ * @param <T>
+ * @author ccervantes
+ */
+public final class Pair<T>
+{
+    private final T _first;
+    private final T _second;
+    private final int _hash;
+
+    /**Creates a new (first, second) Pair
+     *
+     * @param first
+     * @param second
+     */
+    public Pair(T first, T second)
+    {
+        _first = first;
+        _second = second;
+        _hash = 31 * Objects.hashCode(first) + Objects.hashCode(second);
+    }
+
+    /* Getters */
+    public T getFirst(){return _first;}
+    public T getSecond(){return _second;}
+
+    /**Returns the (second, first) Pair
+     *
+     * @return
+     */
+    public Pair<T> reverse()
+    {
+        return new Pair<>(_second, _first);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o)
+            return true;
+        if(!(o instanceof Pair))
+            return false;
+        Pair<?> p = (Pair<?>)o;
+        return _hash == p._hash && Objects.equals(_first, p._first) &&
+               Objects.equals(_second, p._second);
+    }
+
+    @Override
+    public int hashCode(){return _hash;}
+
+    @Override
+    public String toString()
+    {
+        return "(" + _first + ", " + _second + ")";
+    }
+}
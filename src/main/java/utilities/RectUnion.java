@@ -0,0 +1,144 @@
+package utilities;
+
+import java.util.Arrays;
+
+/**A RectUnion computes the exact area of a union of integer,
+ * axis-aligned rectangles [xMin, xMax) x [yMin, yMax) with a
+ * coordinate-compressed sweep line, in O(n^2) time for n rectangles.
+ * A RectUnion is reusable: its working arrays are retained (and
+ * only grown) between clear() calls, so repeated computations
+ * don't allocate. Not thread safe; use one per thread.
+ *
+ * @author ccervantes
+ */
+public class RectUnion
+{
+    private int[] _rects;       //xMin, yMin, xMax, yMax per rectangle
+    private int _numRects;
+    private int[] _ys;          //compressed y coordinates
+    private long[] _events;     //(x << 32 | event idx), sorted
+    private int[] _coverCounts; //rectangles covering each y segment
+
+    /**Creates a new, empty RectUnion
+     */
+    public RectUnion()
+    {
+        _rects = new int[64];
+        _ys = new int[32];
+        _events = new long[32];
+        _coverCounts = new int[32];
+        _numRects = 0;
+    }
+
+    /**Removes all rectangles from the union
+     */
+    public void clear(){_numRects = 0;}
+
+    /**Returns the number of (non-empty) rectangles in the union
+     *
+     * @return
+     */
+    public int size(){return _numRects;}
+
+    /**Adds the rectangle [xMin, xMax) x [yMin, yMax) to the union;
+     * empty rectangles are ignored
+     *
+     * @param xMin
+     * @param yMin
+     * @param xMax
+     * @param yMax
+     */
+    public void add(int xMin, int yMin, int xMax, int yMax)
+    {
+        if(xMax <= xMin || yMax <= yMin)
+            return;
+        if(4 * (_numRects + 1) > _rects.length)
+            _rects = Arrays.copyOf(_rects, 2 * _rects.length);
+        int i = 4 * _numRects++;
+        _rects[i] = xMin; _rects[i+1] = yMin;
+        _rects[i+2] = xMax; _rects[i+3] = yMax;
+    }
+
+    /**Adds the intersection of the rectangle [xMin, xMax) x [yMin, yMax)
+     * with the clip rectangle [clipXMin, clipXMax) x [clipYMin, clipYMax)
+     * to the union
+     *
+     * @param xMin
+     * @param yMin
+     * @param xMax
+     * @param yMax
+     * @param clipXMin
+     * @param clipYMin
+     * @param clipXMax
+     * @param clipYMax
+     */
+    public void addClipped(int xMin, int yMin, int xMax, int yMax,
+                           int clipXMin, int clipYMin, int clipXMax, int clipYMax)
+    {
+        add(Math.max(xMin, clipXMin), Math.max(yMin, clipYMin),
+            Math.min(xMax, clipXMax), Math.min(yMax, clipYMax));
+    }
+
+    /**Returns the area of the union of the rectangles, where
+     * overlapping regions are counted once
+     *
+     * @return
+     */
+    public long getArea()
+    {
+        if(_numRects == 0)
+            return 0;
+        int numEvents = 2 * _numRects;
+        if(_ys.length < numEvents){
+            _ys = new int[numEvents];
+            _events = new long[numEvents];
+            _coverCounts = new int[numEvents];
+        }
+
+        //Compress the y coordinates
+        for(int r=0; r<_numRects; r++){
+            _ys[2*r] = _rects[4*r+1];
+            _ys[2*r+1] = _rects[4*r+3];
+        }
+        Arrays.sort(_ys, 0, numEvents);
+        int numYs = 0;
+        for(int i=0; i<numEvents; i++)
+            if(numYs == 0 || _ys[i] != _ys[numYs-1])
+                _ys[numYs++] = _ys[i];
+        Arrays.fill(_coverCounts, 0, numYs, 0);
+
+        //Each rectangle opens (even event idx) at xMin and
+        //closes (odd event idx) at xMax; packing the event idx
+        //into the low bits sorts events by x without boxing
+        for(int r=0; r<_numRects; r++){
+            _events[2*r] = ((long)_rects[4*r] << 32) | (2*r);
+            _events[2*r+1] = ((long)_rects[4*r+2] << 32) | (2*r+1);
+        }
+        Arrays.sort(_events, 0, numEvents);
+
+        //Sweep, accumulating the covered y length between events
+        long area = 0;
+        long coveredLength = 0;
+        int prevX = (int)(_events[0] >> 32);
+        for(int e=0; e<numEvents; e++){
+            int x = (int)(_events[e] >> 32);
+            int eventIdx = (int)_events[e];
+            area += coveredLength * ((long)x - prevX);
+            prevX = x;
+
+            int r = eventIdx / 2;
+            int delta = eventIdx % 2 == 0 ? 1 : -1;
+            int yLo = Arrays.binarySearch(_ys, 0, numYs, _rects[4*r+1]);
+            int yHi = Arrays.binarySearch(_ys, 0, numYs, _rects[4*r+3]);
+            for(int k=yLo; k<yHi; k++){
+                long segLength = (long)_ys[k+1] - _ys[k];
+                if(_coverCounts[k] == 0 && delta > 0)
+                    coveredLength += segLength;
+                _coverCounts[k] += delta;
+                if(_coverCounts[k] == 0 && delta < 0)
+                    coveredLength -= segLength;
+            }
+        }
+        return area;
+    }
+}
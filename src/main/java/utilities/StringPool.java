@@ -0,0 +1,146 @@
+package utilities;
+
+/**A StringPool interns strings from ranges of CharSequences,
+ * such that a pooled string can be retrieved without first
+ * allocating a substring; intended for small vocabularies of
+ * frequently repeated strings (ie. part of speech tags).
+ * Lookups are lock-free; additions copy the table, so they
+ * should be rare relative to lookups.
+ *
+ * @author ccervantes
+ */
+public class StringPool
+{
+    private volatile String[] _table;
+    private int _size;
+
+    /**Creates a new, empty StringPool
+     */
+    public StringPool()
+    {
+        _table = new String[64];
+        _size = 0;
+    }
+
+    /**Returns the pooled copy of the given string,
+     * adding it to the pool if necessary
+     *
+     * @param s
+     * @return
+     */
+    public String intern(String s)
+    {
+        return intern(s, 0, s.length());
+    }
+
+    /**Returns the pooled string equal to seq[start, end),
+     * adding it to the pool if necessary; only allocates
+     * when the string is new to the pool
+     *
+     * @param seq
+     * @param start
+     * @param end
+     * @return
+     */
+    public String intern(CharSequence seq, int start, int end)
+    {
+        int hash = hash(seq, start, end);
+        String s = find(_table, seq, start, end, hash);
+        if(s != null)
+            return s;
+        return add(seq.subSequence(start, end).toString(), hash);
+    }
+
+    /**Returns the number of strings in the pool
+     *
+     * @return
+     */
+    public synchronized int size(){return _size;}
+
+    /**Adds the given string to the pool (unless another thread
+     * has beaten us to it), returning the pooled copy
+     *
+     * @param s
+     * @param hash
+     * @return
+     */
+    private synchronized String add(String s, int hash)
+    {
+        String existing = find(_table, s, 0, s.length(), hash);
+        if(existing != null)
+            return existing;
+
+        //publish a new table, so readers never see a partial insertion
+        String[] table;
+        if(2 * (_size + 1) > _table.length){
+            table = new String[2 * _table.length];
+            for(String pooled : _table)
+                if(pooled != null)
+                    insert(table, pooled, pooled.hashCode());
+        } else {
+            table = _table.clone();
+        }
+        insert(table, s, hash);
+        _size++;
+        _table = table;
+        return s;
+    }
+
+    /**Inserts s into the first open slot of its probe sequence
+     *
+     * @param table
+     * @param s
+     * @param hash
+     */
+    private static void insert(String[] table, String s, int hash)
+    {
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while(table[i] != null)
+            i = (i + 1) & mask;
+        table[i] = s;
+    }
+
+    /**Returns the string in table equal to seq[start, end);
+     * null if there is none
+     *
+     * @param table
+     * @param seq
+     * @param start
+     * @param end
+     * @param hash
+     * @return
+     */
+    private static String find(String[] table, CharSequence seq,
+                               int start, int end, int hash)
+    {
+        int mask = table.length - 1;
+        for(int i = hash & mask; table[i] != null; i = (i + 1) & mask){
+            String s = table[i];
+            if(s.length() == end - start && s.hashCode() == hash){
+                boolean match = true;
+                for(int j=0; j<s.length() && match; j++)
+                    match = s.charAt(j) == seq.charAt(start + j);
+                if(match)
+                    return s;
+            }
+        }
+        return null;
+    }
+
+    /**Returns the hash of seq[start, end), computed
+     * the same way as String.hashCode()
+     *
+     * @param seq
+     * @param start
+     * @param end
+     * @return
+     */
+    private static int hash(CharSequence seq, int start, int end)
+    {
+        int h = 0;
+        for(int i=start; i<end; i++)
+            h = 31 * h + seq.charAt(i);
+        return h;
+    }
+}
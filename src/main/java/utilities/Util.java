@@ -296,6 +296,40 @@ public class Util
         return list.subList(0, numElements);
     }
 
+    /**Returns a list containing (at most) <b>numElements</b> elements,
+     * uniformly sampled from those remaining in <b>itr</b>
+     * in a single pass (reservoir sampling), such that only the sample
+     * is held in memory; given the same element order and <b>rand</b>
+     * seed, the sample is reproducible
+     *
+     * @param itr         - The elements to sample from
+     * @param numElements - The number of random elements to choose
+     * @param rand        - The source of randomness
+     * @return            - A list of random elements from <b>itr</b>
+     */
+    public static <T> List<T> reservoirSample(Iterator<T> itr, int numElements,
+                                              Random rand)
+    {
+        List<T> reservoir = new ArrayList<>();
+        if(numElements <= 0)
+            return reservoir;
+
+        long numSeen = 0;
+        while(itr.hasNext()){
+            T t = itr.next();
+            numSeen++;
+            if(reservoir.size() < numElements){
+                reservoir.add(t);
+            } else {
+                //replace a random element with probability k/n
+                long idx = (long)(rand.nextDouble() * numSeen);
+                if(idx < numElements)
+                    reservoir.set((int)idx, t);
+            }
+        }
+        return reservoir;
+    }
+
     /**Returns <b>map</b> as a LinkedHashMap, sorted in ascending
      * order based on values. Optional param <b>reverse</b>
      * specifies whether the sort should be reserved.
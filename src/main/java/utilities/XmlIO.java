@@ -10,12 +10,19 @@ import structures.Mention;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.StringWriter;
 import java.util.*;
 
@@ -26,9 +33,22 @@ import java.util.*;
  */
 public class XmlIO
 {
+    //XMLInputFactory instances aren't guaranteed to be thread safe,
+    //so each loader thread gets its own
+    private static final ThreadLocal<XMLInputFactory> _inputFactory =
+            ThreadLocal.withInitial(() -> {
+                XMLInputFactory factory = XMLInputFactory.newInstance();
+                factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+                factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+                return factory;
+            });
+
     /**Reads a bounding box file and loads the contents
-     * directly into a Document object
-     * ]
+     * directly into a Document object; the file is read in a
+     * single pass with a streaming (StAX) parser, where each object
+     * element's names, bndbox, scene, and nobndbox children are
+     * collected until the object is closed
+     *
      * @param filename
      * @return
      */
@@ -36,65 +56,109 @@ public class XmlIO
         readBoundingBoxFile(String filename, structures.Document d)
     {
         int boxCounter = 0;
-        try {
-            //open the file and parse it into an XML doc
-            File xmlFile = new File(filename);
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            org.w3c.dom.Document doc = builder.parse(xmlFile);
-            doc.getDocumentElement().normalize();
+        XMLStreamReader reader = null;
+        try(InputStream in = new BufferedInputStream(new FileInputStream(filename))) {
+            reader = _inputFactory.get().createXMLStreamReader(in);
 
-            //grab the height and width tags
-            Node sizeNode = doc.getElementsByTagName("size").item(0);
-            Element sizeElement = (Element)sizeNode;
-            d.height = Integer.parseInt(sizeElement.getElementsByTagName("height").item(0).getTextContent());
-            d.width = Integer.parseInt(sizeElement.getElementsByTagName("width").item(0).getTextContent());
+            boolean inSize = false, sizeRead = false, inObject = false, inBox = false;
+            Integer height = null, width = null;
+            Set<String> assocChainIDs = null;
+            Map<String, Integer> boxCoordDict = null;
+            String scene = null, nobox = null;
+            while(reader.hasNext()){
+                int event = reader.next();
+                if(event == XMLStreamConstants.START_ELEMENT){
+                    String tag = reader.getLocalName();
+                    if(inBox){
+                        //only the first of each coordinate is used
+                        boolean isCoord = tag.equals("xmin") || tag.equals("ymin") ||
+                                          tag.equals("xmax") || tag.equals("ymax");
+                        if(isCoord && !boxCoordDict.containsKey(tag))
+                            boxCoordDict.put(tag, Integer.parseInt(reader.getElementText().trim()));
+                    } else if(inObject){
+                        //a single object element can refer to a single
+                        //box but multiple chains
+                        switch(tag){
+                            case "name":
+                                String nameText = reader.getElementText();
+                                if(nameText.contains("_"))
+                                    assocChainIDs.add(nameText.split("_")[1]);
+                                else
+                                    assocChainIDs.add(nameText);
+                                break;
+                            case "bndbox":
+                                if(boxCoordDict == null){
+                                    boxCoordDict = new HashMap<>();
+                                    inBox = true;
+                                }
+                                break;
+                            case "scene":
+                                if(scene == null)
+                                    scene = reader.getElementText().trim();
+                                break;
+                            case "nobndbox":
+                                if(nobox == null)
+                                    nobox = reader.getElementText().trim();
+                                break;
+                        }
+                    } else if(inSize){
+                        if(tag.equals("height") && height == null)
+                            height = Integer.parseInt(reader.getElementText().trim());
+                        else if(tag.equals("width") && width == null)
+                            width = Integer.parseInt(reader.getElementText().trim());
+                    } else if(tag.equals("size") && !sizeRead){
+                        inSize = true;
+                    } else if(tag.equals("object")){
+                        inObject = true;
+                        assocChainIDs = new HashSet<>();
+                        boxCoordDict = null;
+                        scene = nobox = null;
+                    }
+                } else if(event == XMLStreamConstants.END_ELEMENT){
+                    String tag = reader.getLocalName();
+                    if(inBox && tag.equals("bndbox")){
+                        inBox = false;
+                    } else if(inSize && tag.equals("size")){
+                        inSize = false;
+                        sizeRead = true;
+                        if(height == null || width == null)
+                            throw new XMLStreamException("size missing height or width");
+                        d.height = height;
+                        d.width = width;
+                    } else if(inObject && !inBox && tag.equals("object")){
+                        inObject = false;
+                        int boxID = -1;
+                        if(boxCoordDict != null) {
+                            if(boxCoordDict.size() < 4)
+                                throw new XMLStreamException("bndbox missing coordinates");
+                            boxID = boxCounter;
+                            d.addBoundingBox(new BoundingBox(d.getID(), boxID,
+                                    boxCoordDict.get("xmin"), boxCoordDict.get("ymin"),
+                                    boxCoordDict.get("xmax"), boxCoordDict.get("ymax")),
+                                    assocChainIDs);
+                        }
+                        if(scene != null)
+                            if(Integer.parseInt(scene) == 1)
+                                d.setSceneChains(assocChainIDs);
+                        if(nobox != null)
+                            if(Integer.parseInt(nobox) == 1)
+                                d.setOrigNoboxChains(assocChainIDs);
 
-            //iterate through the node list
-            NodeList nodeList = doc.getElementsByTagName("object");
-            for(int i=0; i< nodeList.getLength(); i++)
-            {
-                //get the relevant xml nodes from this object node
-                Node n = nodeList.item(i);
-                Element e = (Element)n;
-
-                //a single object element can refer to a single
-                //box but multiple chains
-                NodeList nameNodeList = e.getElementsByTagName("name");
-                Set<String> assocChainIDs = new HashSet<>();
-                for(int j=0; j<nameNodeList.getLength(); j++){
-                    String nameText = nameNodeList.item(j).getTextContent();
-                    if(nameText.contains("_"))
-                        assocChainIDs.add(nameText.split("_")[1]);
-                    else
-                        assocChainIDs.add(nameText);
-                }
-
-                int boxID = -1;
-                Node node_box = e.getElementsByTagName("bndbox").item(0);
-                Node node_scene = e.getElementsByTagName("scene").item(0);
-                Node node_nobox = e.getElementsByTagName("nobndbox").item(0);
-                if(node_box != null) {
-                    boxID = boxCounter;
-                    Element subElement = (Element)node_box;
-                    int xMin = Integer.parseInt(subElement.getElementsByTagName("xmin").item(0).getTextContent());
-                    int yMin = Integer.parseInt(subElement.getElementsByTagName("ymin").item(0).getTextContent());
-                    int xMax = Integer.parseInt(subElement.getElementsByTagName("xmax").item(0).getTextContent());
-                    int yMax = Integer.parseInt(subElement.getElementsByTagName("ymax").item(0).getTextContent());
-                    d.addBoundingBox(new BoundingBox(d.getID(), boxID, xMin, yMin, xMax, yMax), assocChainIDs);
+                        if(boxID > -1)
+                            boxCounter++;
+                    }
                 }
-                if(node_scene != null)
-                    if(Integer.parseInt(node_scene.getTextContent()) == 1)
-                        d.setSceneChains(assocChainIDs);
-                if(node_nobox != null)
-                    if(Integer.parseInt(node_nobox.getTextContent()) == 1)
-                        d.setOrigNoboxChains(assocChainIDs);
-
-                if(boxID > -1)
-                    boxCounter++;
             }
         } catch(Exception ex) {
             Logger.log(ex);
+        } finally {
+            if(reader != null){
+                try{
+                    reader.close();
+                } catch(XMLStreamException xmlEx) {
+                    Logger.log(xmlEx);
+                }
+            }
         }
     }
 
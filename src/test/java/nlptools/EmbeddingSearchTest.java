@@ -0,0 +1,147 @@
+package nlptools;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**Checks EmbeddingMatrix's exact nearest neighbor search against
+ * brute force, and LshIndex's recall against exact search, on
+ * seeded, clustered random embeddings
+ *
+ * @author ccervantes
+ */
+public class EmbeddingSearchTest
+{
+    private static final int K = 10;
+
+    /**Returns a matrix of numWords dim-dimensional vectors, drawn
+     * around numWords / 50 random centroids with the given noise
+     *
+     * @param numWords
+     * @param dim
+     * @param noise
+     * @param seed
+     * @return
+     */
+    private static EmbeddingMatrix buildMatrix(int numWords, int dim, float noise, long seed)
+    {
+        Random rand = new Random(seed);
+        float[][] centroids = new float[Math.max(1, numWords / 50)][dim];
+        for(float[] centroid : centroids)
+            for(int i=0; i<dim; i++)
+                centroid[i] = (float)rand.nextGaussian();
+
+        EmbeddingMatrix matrix = new EmbeddingMatrix(dim, numWords);
+        float[] vec = new float[dim];
+        for(int w=0; w<numWords; w++){
+            float[] centroid = centroids[rand.nextInt(centroids.length)];
+            for(int i=0; i<dim; i++)
+                vec[i] = centroid[i] + noise * (float)rand.nextGaussian();
+            matrix.add("w" + w, vec, 0);
+        }
+        return matrix;
+    }
+
+    /**Returns the k rows most similar to row (excluding itself),
+     * by scoring every row
+     *
+     * @param matrix
+     * @param row
+     * @param k
+     * @return
+     */
+    private static int[] bruteForce(EmbeddingMatrix matrix, int row, int k)
+    {
+        Integer[] rows = new Integer[matrix.size()];
+        for(int r=0; r<rows.length; r++)
+            rows[r] = r;
+        Arrays.sort(rows, (r1, r2) -> Double.compare(
+                matrix.getSimilarity(row, r2), matrix.getSimilarity(row, r1)));
+        int[] neighbors = new int[k];
+        for(int r=0, i=0; i<k; r++)
+            if(rows[r] != row)
+                neighbors[i++] = rows[r];
+        return neighbors;
+    }
+
+    @Test
+    public void exactSearchMatchesBruteForce()
+    {
+        EmbeddingMatrix matrix = buildMatrix(3000, 40, 0.6f, 1L);
+        Random rand = new Random(2L);
+        int[] queries = new int[40];
+        for(int q=0; q<queries.length; q++)
+            queries[q] = rand.nextInt(matrix.size());
+
+        int[][] batch = matrix.getNearestRows(queries, K, 4);
+        for(int q=0; q<queries.length; q++){
+            int[] expected = bruteForce(matrix, queries[q], K);
+            int[] exact = matrix.getNearestRows(queries[q], K);
+            assertEquals(K, exact.length);
+            for(int i=0; i<K; i++){
+                //compare scores, since near-ties may swap rows
+                assertEquals(matrix.getSimilarity(queries[q], expected[i]),
+                             matrix.getSimilarity(queries[q], exact[i]), 1e-5);
+                assertNotEquals(queries[q], exact[i]);
+            }
+            assertArrayEquals(exact, batch[q]);
+        }
+    }
+
+    @Test
+    public void queryVectorFindsItsOwnRow()
+    {
+        EmbeddingMatrix matrix = buildMatrix(1000, 16, 0.6f, 3L);
+        float[] query = new float[matrix.getDim()];
+        for(int row : new int[]{0, 17, 999}){
+            matrix.getVector(row, query, 0);
+            assertEquals(row, matrix.getNearestRows(query, K)[0]);
+        }
+    }
+
+    @Test
+    public void missingRowsHaveNoNeighbors()
+    {
+        EmbeddingMatrix matrix = buildMatrix(500, 8, 0.6f, 4L);
+        assertEquals(0, matrix.getNearestRows(-1, K).length);
+        assertEquals(0, matrix.getNearestRows(new int[]{-1, 3}, K, 2)[0].length);
+        assertEquals(0, new LshIndex(matrix).getNearestRows(-1, K).length);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void exactSearchFailuresAreRethrown()
+    {
+        EmbeddingMatrix matrix = buildMatrix(500, 8, 0.6f, 5L);
+        matrix.getNearestRows(new int[]{0, matrix.size() + 10}, K, 2);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void lshSearchFailuresAreRethrown()
+    {
+        EmbeddingMatrix matrix = buildMatrix(500, 8, 0.6f, 6L);
+        new LshIndex(matrix).getNearestRows(new int[]{0, matrix.size() + 10}, K, 2);
+    }
+
+    @Test
+    public void lshRecallIsHigh()
+    {
+        EmbeddingMatrix matrix = buildMatrix(20000, 64, 0.6f, 7L);
+        LshIndex index = new LshIndex(matrix);
+        Random rand = new Random(8L);
+        int numFound = 0, numExact = 0;
+        for(int q=0; q<100; q++){
+            int row = rand.nextInt(matrix.size());
+            int[] approx = index.getNearestRows(row, K);
+            Arrays.sort(approx);
+            for(int neighbor : matrix.getNearestRows(row, K))
+                if(Arrays.binarySearch(approx, neighbor) >= 0)
+                    numFound++;
+            numExact += K;
+        }
+        double recall = (double)numFound / numExact;
+        assertTrue("recall@" + K + " was " + recall, recall >= 0.9);
+        assertEquals(recall, index.benchmark(100, K, 8L), 0.1);
+    }
+}